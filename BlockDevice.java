@@ -0,0 +1,20 @@
+/**
+ * 
+ * BlockDevice.java
+ * 
+ * What the kernel needs from a disk: requests that are queued and
+ * completed asynchronously.  Each request method returns the queued
+ * request, whose waitFor( ) returns once it has been served, or null if
+ * the device cannot take it yet; the caller then sleeps on COND_DISK_REQ
+ * until a disk interrupt and tries again.
+ *
+ */
+public interface BlockDevice {
+    DiskRequest read( int blockId, byte buffer[] );
+    DiskRequest read( int blockIds[], byte buffers[][] );
+    DiskRequest write( int blockId, byte buffer[] );
+    DiskRequest write( int blockIds[], byte buffers[][] );
+    DiskRequest sync( );
+    int queueDepth( );		// requests waiting or in service
+    String stats( );
+}
@@ -0,0 +1,1028 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Cache.java
+ *
+ * Write-back disk block cache.  The file system reads and writes every
+ * block through it.  A dirty block reaches the disk when it is evicted or
+ * on sync( ) and flush( ), or earlier when a CacheFlusher trickles it out.
+ * Evictions follow a CachePolicy chosen at boot, and the pages live in a
+ * CacheStore, on the heap or off it in slabs.  What each page holds is
+ * kept in int arrays and bitmaps, so the cache is a few objects per stripe
+ * whatever its size.  With shadow set, each stripe also plays every
+ * access to the other policies, to compare their hit ratios; that costs a
+ * lookup per policy on every access.
+ *
+ * The pages are split into stripes by block id, each with its own lock,
+ * hash index and policy, so accesses to blocks of different stripes
+ * never wait for each other.  No lock is held during disk I/O.  A block
+ * that misses gets its page at once, marked pending, and is read with the
+ * stripe unlocked; others who want it meanwhile wait on the stripe's
+ * condition.  Dirty blocks taken out of the cache are written back from
+ * InFlight, one write at a time per block, and a read that misses finds
+ * them there until they are on disk.
+ *
+ */
+public class Cache {
+    private final static int INVALID = -1;  // frame of an empty page
+    private final static int maxStripes = 64;
+    private final static int minStripeBlocks = 8; // pages a stripe gets at least
+
+    private int blockSize;            // bytes per block
+    private int cacheBlocks;          // pages in all stripes
+    private int diskBlocks;           // block ids are below it
+    private String policyName;        // replacement policy in use
+    private String storeName;         // where the pages are kept
+    private boolean shadow;           // simulate the other policies too
+    private Stripe[] stripes;
+
+    // Dirty blocks in all stripes.  Past the hard limit, in percent of the
+    // cache, a writer writes blocks back itself before it returns.
+    private final static int dirtyHardRatio = 50;
+    private AtomicInteger dirtyBlocks = new AtomicInteger();
+    private int cursor;               // block after the last one trickled
+    private long trickled;            // blocks written back by trickle( )
+    private long throttled;           // writes that had to write back
+
+    // Blocks admitted to be read ahead or read ahead and not used yet, at
+    // most aheadBudget, so that readahead cannot evict what it brought in
+    // before it is read
+    private int aheadBudget;
+    private AtomicInteger ahead = new AtomicInteger();
+    private InFlight inFlight = new InFlight();
+
+    /**
+     * The pages of the blocks whose id modulo the stripe count is the same
+     */
+    private class Stripe {
+        public final ReentrantLock lock = new ReentrantLock();
+        public final Condition filled = lock.newCondition(); // a read ended
+        public IntMap index;          // block id -> page
+        public CacheStore store;      // cached block data
+        public int[] frames;          // disk block in each page, INVALID if none
+        public long[] dirtiedAt;      // msec when each page was last made dirty
+        public int[] dirty;           // bitmap of pages modified since read
+        public int[] readAhead;       // bitmap of pages read ahead, not yet used
+        public int[] invalid;         // bitmap of pages not filled yet
+        public int[] pending;         // bitmap of invalid pages being read
+        public int[] serial;          // of the read pending on each page
+        public int serials;           // last serial handed out
+        public CachePolicy policy;    // picks the pages to evict
+        public Shadow[] shadows;      // the other policies, simulated if shadow
+
+        // hit and miss counters
+        public long readHits;
+        public long readMisses;
+        public long writeHits;
+        public long writeMisses;
+        public long writeBacks;
+        public long prefetched;       // blocks read ahead
+        public long prefetchHits;     // of them, later read
+
+        public Stripe(int size) {
+            index = new IntMap(size);
+            store = CacheStore.forName(storeName, size, blockSize);
+            frames = new int[size];
+            Arrays.fill(frames, INVALID);
+            dirtiedAt = new long[size];
+            dirty = new int[(size + 31) / 32];
+            readAhead = new int[(size + 31) / 32];
+            invalid = new int[(size + 31) / 32];
+            pending = new int[(size + 31) / 32];
+            serial = new int[size];
+            policy = CachePolicy.forName(policyName, size);
+            shadows = new Shadow[shadow ? CachePolicy.names.length - 1 : 0];
+            for (int i = 0, j = 0; shadow && i < CachePolicy.names.length; i++)
+                if (!CachePolicy.names[i].equals(policyName))
+                    shadows[j++] = new Shadow(CachePolicy.forName(CachePolicy.names[i], size));
+        }
+
+        /**
+         * Page holding blockId, -1 if it is not cached
+         */
+        public int findPage(int blockId) {
+            return index.get(blockId);
+        }
+
+        /**
+         * Page holding blockId, -1 if it missed.  Also plays the access
+         * to the simulated policies, if any.
+         */
+        public int access(int blockId) {
+            for (int i = 0; i < shadows.length; i++)
+                shadows[i].access(blockId);
+            int page = findPage(blockId);
+            if (page != -1)
+                policy.hit(page);
+            return page;
+        }
+
+        /**
+         * Queues the block in a dirty page for writing back
+         */
+        public void writeBack(int page, WriteBack evicted) {
+            if (frames[page] != INVALID && isSet(dirty, page)) {
+                evicted.add(frames[page], store.copy(page));
+                reset(dirty, page);
+                dirtyBlocks.decrementAndGet();
+                writeBacks++;
+            }
+        }
+
+        public void markDirty(int page) {
+            if (!isSet(dirty, page)) {
+                set(dirty, page);
+                dirtiedAt[page] = System.currentTimeMillis();
+                dirtyBlocks.incrementAndGet();
+            }
+        }
+
+        /**
+         * Gives blockId a page, left invalid, evicting another block if the
+         * stripe is full.  A read pending on the page evicted is dropped.
+         */
+        public int reserve(int blockId, WriteBack evicted) {
+            int page = policy.replace(blockId);
+            writeBack(page, evicted);
+            if (frames[page] != INVALID) {
+                index.remove(frames[page]);
+                if (isSet(pending, page)) {
+                    reset(pending, page);
+                    filled.signalAll();
+                }
+            }
+            used(page);
+            frames[page] = blockId;
+            set(invalid, page);
+            index.put(blockId, page);
+            return page;
+        }
+
+        /**
+         * Marks the invalid page as being read.  Returns the serial the
+         * read has to give complete( ), so that a read that ended late
+         * does not fill the page once it was filled and given out again.
+         */
+        public int pend(int page) {
+            set(pending, page);
+            serial[page] = ++serials;
+            return serial[page];
+        }
+
+        /**
+         * Fills page from buffer.  A read pending on it is overtaken, as its
+         * data is no newer, and those waiting for it are woken.
+         */
+        public void fill(int page, byte[] buffer) {
+            store.write(page, buffer);
+            reset(invalid, page);
+            if (isSet(pending, page)) {
+                reset(pending, page);
+                filled.signalAll();
+            }
+        }
+
+        /**
+         * Fills blockId's page from buffer, giving it one if it has none
+         */
+        public void install(int blockId, byte[] buffer, boolean dirty,
+                            WriteBack evicted) {
+            int page = findPage(blockId);
+            if (page == -1)
+                page = reserve(blockId, evicted);
+            fill(page, buffer);
+            if (dirty)
+                markDirty(page);
+        }
+
+        /**
+         * Ends the read of blockId that pend( ) gave readSerial: fills its
+         * page with the data read, or with buffer null after an error,
+         * leaves it invalid.  Returns the page filled, -1 if the page was
+         * evicted or filled since, even if another read is pending on it.
+         */
+        public int complete(int blockId, int readSerial, byte[] buffer) {
+            int page = findPage(blockId);
+            if (page == -1 || !isSet(pending, page) || serial[page] != readSerial)
+                return -1;
+            if (buffer != null) {
+                fill(page, buffer);
+                return page;
+            }
+            reset(pending, page);
+            filled.signalAll();
+            return -1;
+        }
+
+        /**
+         * Clears the read-ahead mark of page, giving its place in the
+         * budget back.  Returns whether it was marked.
+         */
+        public boolean used(int page) {
+            if (!isSet(readAhead, page))
+                return false;
+            reset(readAhead, page);
+            ahead.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * Empties every page, dropping the reads pending
+         */
+        public void clear() {
+            for (int page = 0; page < frames.length; page++)
+                used(page);
+            Arrays.fill(frames, INVALID);
+            Arrays.fill(invalid, 0);
+            Arrays.fill(pending, 0);
+            index.clear();
+            policy.clear();
+            for (int i = 0; i < shadows.length; i++)
+                shadows[i].clear();
+            filled.signalAll();
+        }
+    }
+
+    /**
+     * A policy run on block ids alone, to see what its hit ratio would be
+     */
+    private static class Shadow {
+        public CachePolicy policy;
+        public IntMap index;
+        public int[] blockOf;         // block in each page, -1 if none
+        public long hits;
+        public long misses;
+
+        public Shadow(CachePolicy policy) {
+            this.policy = policy;
+            index = new IntMap(policy.blocks.length);
+            blockOf = new int[policy.blocks.length];
+            clear();
+        }
+
+        public void clear() {
+            policy.clear();
+            index.clear();
+            Arrays.fill(blockOf, -1);
+        }
+
+        public void access(int blockId) {
+            int page = index.get(blockId);
+            if (page != -1) {
+                policy.hit(page);
+                hits++;
+                return;
+            }
+            misses++;
+            int newPage = policy.replace(blockId);
+            if (blockOf[newPage] != -1)
+                index.remove(blockOf[newPage]);
+            blockOf[newPage] = blockId;
+            index.put(blockId, newPage);
+        }
+    }
+
+    /**
+     * Dirty blocks taken out of the cache, from the time they are taken
+     * out until they are on disk.  The first call to take a block out
+     * writes it; a call taking it out again meanwhile only leaves its newer
+     * data here, which the writing call writes once more if its write had
+     * begun.  So one block is written by one call at a time, in the order
+     * its data was taken out.  A block whose write failed stays here,
+     * still read from here, until a later call takes it out again or a
+     * sync writes it.  The monitor is held neither across I/O nor while
+     * locking a stripe.
+     */
+    private class InFlight {
+        private IntMap slotOf = new IntMap(16);    // block id -> slot
+        private int[] blockOf = new int[16];       // slot -> block id
+        private byte[][] data = new byte[16][];    // newest data, null if free
+        private boolean[] writing = new boolean[16]; // its write has begun
+        private boolean[] again = new boolean[16];   // newer data came since
+        private boolean[] failed = new boolean[16];  // its write failed
+        private long[] serial = new long[16];      // when the slot was taken
+        private long taken;                        // slots taken so far
+
+        /**
+         * Leaves data for blockId.  Returns whether the caller is to write it.
+         */
+        public synchronized boolean add(int blockId, byte[] block) {
+            int slot = slotOf.get(blockId);
+            if (slot != -1) {
+                data[slot] = block;
+                again[slot] = writing[slot];
+                if (!failed[slot])
+                    return false;
+                failed[slot] = false;           // the caller writes it again
+                return true;
+            }
+            slot = freeSlot();
+            blockOf[slot] = blockId;
+            data[slot] = block;
+            writing[slot] = false;
+            again[slot] = false;
+            failed[slot] = false;
+            serial[slot] = taken++;
+            slotOf.put(blockId, slot);
+            return true;
+        }
+
+        /**
+         * Whether the write of some block failed and is not done again yet
+         */
+        public synchronized boolean anyFailed() {
+            for (int slot = 0; slot < data.length; slot++)
+                if (data[slot] != null && failed[slot])
+                    return true;
+            return false;
+        }
+
+        /**
+         * The blocks whose write failed, which the caller is to write again
+         */
+        public synchronized int[] takeFailed() {
+            int[] blockIds = new int[data.length];
+            int n = 0;
+            for (int slot = 0; slot < data.length; slot++)
+                if (data[slot] != null && failed[slot]) {
+                    failed[slot] = false;
+                    blockIds[n++] = blockOf[slot];
+                }
+            return Arrays.copyOf(blockIds, n);
+        }
+
+        /**
+         * The newest data of blockId if it is not on disk yet, else null
+         */
+        public synchronized byte[] latest(int blockId) {
+            int slot = slotOf.get(blockId);
+            return (slot != -1) ? data[slot] : null;
+        }
+
+        /**
+         * The newest data of the given blocks, whose writes begin
+         */
+        public synchronized byte[][] begin(int blockIds[]) {
+            byte[][] blocks = new byte[blockIds.length][];
+            for (int i = 0; i < blockIds.length; i++) {
+                int slot = slotOf.get(blockIds[i]);
+                writing[slot] = true;
+                again[slot] = false;
+                blocks[i] = data[slot];
+            }
+            return blocks;
+        }
+
+        /**
+         * The write of the given blocks ended, successfully if ok.  Returns
+         * those to write again.  Failed ones are kept, none written again.
+         */
+        public synchronized int[] end(int blockIds[], boolean ok) {
+            int[] left = new int[blockIds.length];
+            int n = 0;
+            for (int i = 0; i < blockIds.length; i++) {
+                int slot = slotOf.get(blockIds[i]);
+                if (!ok) {
+                    writing[slot] = false;
+                    again[slot] = false;
+                    failed[slot] = true;
+                }
+                else if (again[slot])
+                    left[n++] = blockIds[i];
+                else {
+                    data[slot] = null;
+                    slotOf.remove(blockIds[i]);
+                }
+            }
+            notifyAll();
+            return Arrays.copyOf(left, n);
+        }
+
+        /**
+         * Waits until every block taken out before the call is on disk, or
+         * its write failed
+         */
+        public synchronized void await() {
+            long before = taken;
+            for (int slot = 0; slot < data.length; slot++)
+                while (data[slot] != null && serial[slot] < before &&
+                       !failed[slot]) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        SysLib.cerr(e.toString() + "\n");
+                    }
+                }
+        }
+
+        private int freeSlot() {
+            for (int slot = 0; slot < data.length; slot++)
+                if (data[slot] == null)
+                    return slot;
+            int slot = data.length;
+            blockOf = Arrays.copyOf(blockOf, slot * 2);
+            data = Arrays.copyOf(data, slot * 2);
+            writing = Arrays.copyOf(writing, slot * 2);
+            again = Arrays.copyOf(again, slot * 2);
+            failed = Arrays.copyOf(failed, slot * 2);
+            serial = Arrays.copyOf(serial, slot * 2);
+            return slot;
+        }
+    }
+
+    /**
+     * Dirty blocks taken out of the cache during one call, written back to
+     * disk in block order as one request once the call has unlocked the
+     * stripes.  Those another call is writing already are left to it.
+     */
+    private class WriteBack {
+        private int[] blockIds = new int[4];  // blocks this call writes
+        private int size;
+        private int taken;                    // blocks taken out
+
+        public int size() {
+            return taken;
+        }
+
+        public void add(int blockId, byte[] block) {
+            taken++;
+            if (inFlight.add(blockId, block))
+                own(blockId);
+        }
+
+        /**
+         * Takes over the blocks whose write failed before, to write them
+         * again
+         */
+        public void retry() {
+            int[] failed = inFlight.takeFailed();
+            for (int i = 0; i < failed.length; i++)
+                own(failed[i]);
+        }
+
+        private void own(int blockId) {
+            if (size == blockIds.length)
+                blockIds = Arrays.copyOf(blockIds, size * 2);
+            blockIds[size++] = blockId;
+        }
+
+        /**
+         * Writes the blocks this call owns.  A failed request is split into
+         * one per block, as one bad block fails all of it.  Returns false
+         * if a block could not be written; it stays in InFlight until it
+         * is.
+         */
+        public boolean write() {
+            int[] ids = Arrays.copyOf(blockIds, size);
+            size = 0;
+            Arrays.sort(ids);
+            int[] left = writeOut(ids);
+            int failed = 0;
+            for (int i = 0; i < left.length; i++) {
+                int[] one = writeOut(new int[] { left[i] });
+                if (one.length > 0) {
+                    inFlight.end(one, false);
+                    failed++;
+                }
+            }
+            if (failed == 0)
+                return true;
+            SysLib.cerr("threadOS: writing back " + failed +
+                        " blocks failed, kept for the next sync\n");
+            return false;
+        }
+
+        /**
+         * Writes the blocks, again while newer data comes.  Returns those
+         * left when a write failed, none once all are on disk.
+         */
+        private int[] writeOut(int[] ids) {
+            while (ids.length > 0) {
+                if (SysLib.rawwritev(ids, inFlight.begin(ids)) == Kernel.ERROR)
+                    return ids;
+                ids = inFlight.end(ids, true);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Whether bit i of a bitmap is set
+     */
+    private static boolean isSet(int bits[], int i) {
+        return (bits[i >>> 5] & (1 << i)) != 0;
+    }
+
+    private static void set(int bits[], int i) {
+        bits[i >>> 5] |= 1 << i;
+    }
+
+    private static void reset(int bits[], int i) {
+        bits[i >>> 5] &= ~(1 << i);
+    }
+
+    /**
+     * The first set bit of a bitmap at i or after, -1 if there is none
+     */
+    private static int nextSet(int bits[], int i) {
+        for (int w = i >>> 5; w < bits.length; w++) {
+            int word = (w == i >>> 5) ? bits[w] & (-1 << i) : bits[w];
+            if (word != 0)
+                return (w << 5) + Integer.numberOfTrailingZeros(word);
+        }
+        return -1;
+    }
+
+    public Cache(int blockSize, int cacheBlocks) {
+        this(blockSize, cacheBlocks, "clock");
+    }
+
+    public Cache(int blockSize, int cacheBlocks, String policy) {
+        this(blockSize, cacheBlocks, policy, "heap");
+    }
+
+    public Cache(int blockSize, int cacheBlocks, String policy, String store) {
+        this(blockSize, cacheBlocks, policy, store, false);
+    }
+
+    public Cache(int blockSize, int cacheBlocks, String policy, String store,
+                 boolean shadow) {
+        this(blockSize, cacheBlocks, policy, store, shadow, Integer.MAX_VALUE);
+    }
+
+    public Cache(int blockSize, int cacheBlocks, String policy, String store,
+                 boolean shadow, int diskBlocks) {
+        this.blockSize = blockSize;
+        this.diskBlocks = diskBlocks;
+        this.cacheBlocks = Math.max(cacheBlocks, 1);
+        policyName = (CachePolicy.forName(policy, 1) != null) ? policy : "clock";
+        storeName = (CacheStore.forName(store, 1, blockSize) != null) ? store : "heap";
+        this.shadow = shadow;
+        aheadBudget = Math.max(1, this.cacheBlocks / 2);
+        int n = Math.max(1, Math.min(maxStripes, this.cacheBlocks / minStripeBlocks));
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe(this.cacheBlocks / n +
+                                    (i < this.cacheBlocks % n ? 1 : 0));
+    }
+
+    private Stripe stripeOf(int blockId) {
+        return stripes[blockId % stripes.length];
+    }
+
+    /**
+     * Indexes into blockIds ordered by stripe, so a call can lock each
+     * stripe once for all its blocks there
+     */
+    private int[] byStripe(int blockIds[]) {
+        long[] order = new long[blockIds.length];
+        for (int i = 0; i < blockIds.length; i++)
+            order[i] = ((long)(blockIds[i] % stripes.length) << 32) | i;
+        Arrays.sort(order);
+        int[] indexes = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            indexes[i] = (int)order[i];
+        return indexes;
+    }
+
+    private boolean validIds(int blockIds[], String call) {
+        for (int i = 0; i < blockIds.length; i++)
+            if (blockIds[i] < 0 || blockIds[i] >= diskBlocks) {
+                SysLib.cerr("threadOS: a wrong blockId for " + call + "\n");
+                return false;
+            }
+        return true;
+    }
+
+    public boolean read(int blockId, byte buffer[]) {
+        return read(new int[] { blockId }, new byte[][] { buffer });
+    }
+
+    /**
+     * Reads blockIds[i] into buffers[i] for every i.  The blocks not cached
+     * are given pending pages, read from disk with one request with no
+     * stripe locked, then filled in.  Blocks another call is reading are
+     * waited for last, once this call's own reads are done.
+     */
+    public boolean read(int blockIds[], byte buffers[][]) {
+        if (!validIds(blockIds, "cread"))
+            return false;
+        int[] missed = new int[blockIds.length];   // read by this call
+        int[] serials = new int[blockIds.length];  // of their reads
+        int misses = 0;
+        int[] waited = new int[blockIds.length];   // read by another call
+        int waits = 0;
+        WriteBack evicted = new WriteBack();
+        int[] order = byStripe(blockIds);
+        for (int k = 0; k < order.length; ) {
+            Stripe stripe = stripeOf(blockIds[order[k]]);
+            stripe.lock.lock();
+            try {
+                for (; k < order.length && stripeOf(blockIds[order[k]]) == stripe; k++) {
+                    int i = order[k];
+                    int page = stripe.access(blockIds[i]);
+                    if (page != -1 && !isSet(stripe.invalid, page)) {
+                        stripe.store.read(page, buffers[i]);
+                        stripe.readHits++;
+                        if (stripe.used(page))
+                            stripe.prefetchHits++;
+                        continue;
+                    }
+                    stripe.readMisses++;
+                    if (page != -1 && isSet(stripe.pending, page)) {
+                        waited[waits++] = i;
+                        continue;
+                    }
+                    byte[] block = inFlight.latest(blockIds[i]);
+                    if (block != null) {        // not on disk yet
+                        System.arraycopy(block, 0, buffers[i], 0, blockSize);
+                        stripe.install(blockIds[i], buffers[i], false, evicted);
+                        continue;
+                    }
+                    if (page == -1)
+                        page = stripe.reserve(blockIds[i], evicted);
+                    serials[misses] = stripe.pend(page);
+                    missed[misses++] = i;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        evicted.write();
+
+        if (misses > 0) {
+            int[] missedIds = new int[misses];
+            byte[][] missedBuffers = new byte[misses][];
+            for (int i = 0; i < misses; i++) {
+                missedIds[i] = blockIds[missed[i]];
+                missedBuffers[i] = buffers[missed[i]];
+            }
+            boolean ok = SysLib.rawreadv(missedIds, missedBuffers) != Kernel.ERROR;
+            order = byStripe(missedIds);
+            for (int k = 0; k < order.length; ) {
+                Stripe stripe = stripeOf(missedIds[order[k]]);
+                stripe.lock.lock();
+                try {
+                    for (; k < order.length && stripeOf(missedIds[order[k]]) == stripe; k++)
+                        stripe.complete(missedIds[order[k]], serials[order[k]],
+                                        ok ? missedBuffers[order[k]] : null);
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            if (!ok)
+                return false;
+        }
+
+        for (int w = 0; w < waits; w++) {
+            int i = waited[w];
+            Stripe stripe = stripeOf(blockIds[i]);
+            boolean done = false;
+            stripe.lock.lock();
+            try {
+                int page = stripe.findPage(blockIds[i]);
+                while (page != -1 && isSet(stripe.pending, page)) {
+                    stripe.filled.awaitUninterruptibly();
+                    page = stripe.findPage(blockIds[i]);
+                }
+                if (page != -1 && !isSet(stripe.invalid, page)) {
+                    stripe.store.read(page, buffers[i]);
+                    if (stripe.used(page))
+                        stripe.prefetchHits++;
+                    done = true;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if (!done && !read(blockIds[i], buffers[i]))  // evicted or failed
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Admits up to wanted blocks to be read ahead, as the budget allows.
+     * Returns how many; prefetch( ) must be called with that many blocks.
+     */
+    public int admit(int wanted) {
+        while (true) {
+            int now = ahead.get();
+            int n = Math.max(0, Math.min(wanted, aheadBudget - now));
+            if (n == 0 || ahead.compareAndSet(now, now + n))
+                return n;
+        }
+    }
+
+    /**
+     * Reads the given blocks, admitted by admit( ), ahead of their use.
+     * Those not cached get pending pages, as for a read, and are read
+     * from disk with one request with no stripe locked.  The policy places
+     * them like any other miss, but they count as hits or misses only once
+     * read.  A block cached already or dropped before it arrives gives its
+     * place in the budget back at once.  Returns how many blocks were read.
+     */
+    public int prefetch(int blockIds[]) {
+        if (!validIds(blockIds, "cprefetch")) {
+            ahead.addAndGet(-blockIds.length);
+            return 0;
+        }
+        int[] missed = new int[blockIds.length];
+        int[] serials = new int[blockIds.length];
+        int misses = 0;
+        WriteBack evicted = new WriteBack();
+        int[] order = byStripe(blockIds);
+        for (int k = 0; k < order.length; ) {
+            Stripe stripe = stripeOf(blockIds[order[k]]);
+            stripe.lock.lock();
+            try {
+                for (; k < order.length && stripeOf(blockIds[order[k]]) == stripe; k++) {
+                    int blockId = blockIds[order[k]];
+                    if (stripe.findPage(blockId) != -1 ||
+                        inFlight.latest(blockId) != null)
+                        continue;
+                    serials[misses] = stripe.pend(stripe.reserve(blockId, evicted));
+                    missed[misses++] = blockId;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        evicted.write();
+        ahead.addAndGet(misses - blockIds.length);
+        if (misses == 0)
+            return 0;
+
+        missed = Arrays.copyOf(missed, misses);
+        byte[][] buffers = new byte[misses][blockSize];
+        boolean ok = SysLib.rawreadv(missed, buffers) != Kernel.ERROR;
+        int read = 0;
+        order = byStripe(missed);
+        for (int k = 0; k < order.length; ) {
+            Stripe stripe = stripeOf(missed[order[k]]);
+            stripe.lock.lock();
+            try {
+                for (; k < order.length && stripeOf(missed[order[k]]) == stripe; k++) {
+                    int page = stripe.complete(missed[order[k]], serials[order[k]],
+                                               ok ? buffers[order[k]] : null);
+                    if (page == -1) {
+                        ahead.decrementAndGet();
+                        continue;
+                    }
+                    set(stripe.readAhead, page);
+                    stripe.prefetched++;
+                    read++;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return read;
+    }
+
+    public boolean write(int blockId, byte buffer[]) {
+        return write(new int[] { blockId }, new byte[][] { buffer });
+    }
+
+    /**
+     * Writes buffers[i] to blockIds[i] for every i in the cache only.  The
+     * dirty blocks evicted are written back once the stripes are unlocked.
+     */
+    public boolean write(int blockIds[], byte buffers[][]) {
+        if (!validIds(blockIds, "cwrite"))
+            return false;
+        WriteBack evicted = new WriteBack();
+        int[] order = byStripe(blockIds);
+        for (int k = 0; k < order.length; ) {
+            Stripe stripe = stripeOf(blockIds[order[k]]);
+            stripe.lock.lock();
+            try {
+                for (; k < order.length && stripeOf(blockIds[order[k]]) == stripe; k++) {
+                    int i = order[k];
+                    int page = stripe.access(blockIds[i]);
+                    if (page != -1) {
+                        stripe.fill(page, buffers[i]);
+                        stripe.used(page);
+                        stripe.markDirty(page);
+                        stripe.writeHits++;
+                    }
+                    else {
+                        stripe.install(blockIds[i], buffers[i], true, evicted);
+                        stripe.writeMisses++;
+                    }
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        evicted.write();
+        if (dirtyBlocks.get() * 100 > cacheBlocks * dirtyHardRatio) {
+            synchronized (this) {
+                throttled++;
+            }
+            while (dirtyBlocks.get() * 100 > cacheBlocks * dirtyHardRatio &&
+                   trickle(CacheFlusher.batch) > 0)
+                ;
+        }
+        return true;
+    }
+
+    public int capacity() {
+        return cacheBlocks;
+    }
+
+    public int dirtyBlocks() {
+        return dirtyBlocks.get();
+    }
+
+    /**
+     * When the oldest dirty block was made dirty, in msec, -1 if none is
+     */
+    public long oldestDirty() {
+        long oldest = -1;
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                for (int page = nextSet(stripe.dirty, 0); page != -1;
+                     page = nextSet(stripe.dirty, page + 1)) {
+                    long at = stripe.dirtiedAt[page];
+                    if (oldest == -1 || at < oldest)
+                        oldest = at;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Writes back up to max dirty blocks as one request: the next ones in
+     * block order after the last block trickled, wrapping around to the
+     * lowest.  Returns how many were written.
+     */
+    public int trickle(int max) {
+        int start;
+        synchronized (this) {
+            start = cursor;
+        }
+        int[] dirtyIds = new int[Math.max(dirtyBlocks.get(), 1)];
+        int dirty = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                for (int page = nextSet(stripe.dirty, 0); page != -1;
+                     page = nextSet(stripe.dirty, page + 1)) {
+                    if (dirty == dirtyIds.length)
+                        dirtyIds = Arrays.copyOf(dirtyIds, dirty * 2);
+                    dirtyIds[dirty++] = stripe.frames[page];
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        if (dirty == 0)
+            return 0;
+
+        // the first max at or after start, then the lowest ones, wrapping
+        Arrays.sort(dirtyIds, 0, dirty);
+        int from = 0;
+        while (from < dirty && dirtyIds[from] < start)
+            from++;
+        int[] blockIds = new int[Math.min(max, dirty)];
+        for (int n = 0; n < blockIds.length; n++)
+            blockIds[n] = dirtyIds[(from + n) % dirty];
+        int last = blockIds[blockIds.length - 1];  // maybe wrapped around
+
+        WriteBack batch = new WriteBack();
+        int[] order = byStripe(blockIds);
+        for (int k = 0; k < order.length; ) {
+            Stripe stripe = stripeOf(blockIds[order[k]]);
+            stripe.lock.lock();
+            try {
+                for (; k < order.length && stripeOf(blockIds[order[k]]) == stripe; k++) {
+                    int page = stripe.findPage(blockIds[order[k]]);
+                    if (page != -1)
+                        stripe.writeBack(page, batch);  // unless written back since
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        int n = batch.size();
+        batch.write();
+        synchronized (this) {
+            cursor = last + 1;
+            trickled += n;
+        }
+        return n;
+    }
+
+    /**
+     * Writes every dirty block back to disk as one request, keeping them
+     * cached, then empties the cache if invalidate is set.  Blocks whose
+     * write failed before are written again with them.  Returns once the
+     * blocks other calls took out before are on disk too, or their write
+     * failed; false if the write of any block failed.
+     */
+    private boolean writeBackAll(boolean invalidate) {
+        WriteBack dirty = new WriteBack();
+        dirty.retry();
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                for (int i = 0; i < stripe.frames.length; i++)
+                    stripe.writeBack(i, dirty);
+                if (invalidate)
+                    stripe.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        boolean ok = dirty.write();
+        inFlight.await();
+        return ok && !inFlight.anyFailed();
+    }
+
+    /**
+     * Writes every dirty block back to disk, keeping them cached.  Returns
+     * false if a block could not be written.
+     */
+    public boolean sync() {
+        return writeBackAll(false);
+    }
+
+    /**
+     * Writes every dirty block back to disk and empties the cache.  Returns
+     * false if a block could not be written.
+     */
+    public boolean flush() {
+        return writeBackAll(true);
+    }
+
+    /**
+     * Hit ratios for reads and writes, dirty blocks written back and
+     * blocks read ahead, then, if shadowing, the hit ratio of every policy
+     * over the same accesses
+     */
+    public String stats() {
+        long readHits = 0, reads = 0, writeHits = 0, writes = 0, writeBacks = 0;
+        long prefetched = 0, prefetchHits = 0;
+        long[] shadowHits = new long[CachePolicy.names.length - 1];
+        long[] shadowAccesses = new long[CachePolicy.names.length - 1];
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            readHits += stripe.readHits;
+            reads += stripe.readHits + stripe.readMisses;
+            writeHits += stripe.writeHits;
+            writes += stripe.writeHits + stripe.writeMisses;
+            writeBacks += stripe.writeBacks;
+            prefetched += stripe.prefetched;
+            prefetchHits += stripe.prefetchHits;
+            for (int i = 0; i < stripe.shadows.length; i++) {
+                shadowHits[i] += stripe.shadows[i].hits;
+                shadowAccesses[i] += stripe.shadows[i].hits + stripe.shadows[i].misses;
+            }
+            stripe.lock.unlock();
+        }
+        String s = "cache: " + cacheBlocks + " blocks in " + stripes.length +
+                " stripes, " + policyName + ", " + storeName + " store, reads " + readHits + "/" + reads + " hits" +
+                (reads > 0 ? " (" + readHits * 100 / reads + "%)" : "") +
+                ", writes " + writeHits + "/" + writes + " hits" +
+                (writes > 0 ? " (" + writeHits * 100 / writes + "%)" : "") +
+                ", " + writeBacks + " written back\n";
+        synchronized (this) {
+            s += "dirty: " + dirtyBlocks.get() + " blocks now, " + trickled +
+                    " trickled in block order, " + throttled + " writes throttled\n";
+        }
+
+        s += "readahead: " + prefetched + " blocks prefetched, " + prefetchHits +
+                " of them read, " + ahead.get() + " of " + aheadBudget +
+                " budgeted held now\n";
+
+        if (!shadow)
+            return s;
+        s += "policy hit ratios:";
+        for (int i = 0, j = 0; i < CachePolicy.names.length; i++) {
+            long hits, accesses;
+            if (CachePolicy.names[i].equals(policyName)) {
+                hits = readHits + writeHits;
+                accesses = reads + writes;
+            }
+            else {
+                hits = shadowHits[j];
+                accesses = shadowAccesses[j++];
+            }
+            s += " " + CachePolicy.names[i] + " " +
+                    (accesses > 0 ? hits * 1000 / accesses / 10.0 : 0.0) + "%";
+        }
+        return s + "\n";
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ *
+ * CacheFlusher.java
+ *
+ * Kernel thread that trickles dirty cache blocks to the disk in block
+ * order while the disk is idle, once too many blocks are dirty or one has
+ * been dirty too long.  Evictions then seldom have to write a block back,
+ * and a sync has little left to write.
+ *
+ */
+public class CacheFlusher extends Thread {
+    public final static int batch = 8;             // blocks written per request
+    private final static int interval = 100;       // msec between checks
+    private final static int backgroundRatio = 10; // dirty percent of the cache
+    private final static long expire = 1000;       // msec a block may stay dirty
+
+    private Cache cache;
+    private BlockDevice disk;
+
+    public CacheFlusher(Cache cache, BlockDevice disk) {
+        this.cache = cache;
+        this.disk = disk;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                sleep(interval);
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+            while (disk.queueDepth() == 0 && needsFlush())
+                if (cache.trickle(batch) == 0)
+                    break;
+        }
+    }
+
+    /**
+     * True if the dirty blocks are over the background ratio or the
+     * oldest of them has expired
+     */
+    private boolean needsFlush() {
+        if (cache.dirtyBlocks() * 100 > cache.capacity() * backgroundRatio)
+            return true;
+        long oldest = cache.oldestDirty();
+        return oldest != -1 && System.currentTimeMillis() - oldest > expire;
+    }
+}
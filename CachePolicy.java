@@ -0,0 +1,396 @@
+/**
+ *
+ * CachePolicy.java
+ *
+ * Replacement policy of one cache stripe.  The stripe reports every hit
+ * on a page and asks for a page whenever a block misses; the policy picks
+ * a free page or evicts one, and remembers which block each page holds.
+ * Pick one at boot with cachepolicy=clock|2q|arc|lirs.  The lists are
+ * IntLists, so a policy allocates nothing per page or block.
+ *
+ */
+public abstract class CachePolicy {
+    public final static String[] names = { "clock", "2q", "arc", "lirs" };
+
+    protected int[] blocks;           // block held by each page, -1 if none
+    protected int used;               // pages filled since the last clear
+
+    protected CachePolicy(int pages) {
+        blocks = new int[pages];
+        clear();
+    }
+
+    /**
+     * The block held in page was used again
+     */
+    public abstract void hit(int page);
+
+    /**
+     * Returns the page blockId, which missed, goes to.  The block the page
+     * held, if any, is evicted.
+     */
+    public abstract int replace(int blockId);
+
+    public abstract String name();
+
+    /**
+     * Every page was emptied
+     */
+    public void clear() {
+        for (int i = 0; i < blocks.length; i++)
+            blocks[i] = -1;
+        used = 0;
+    }
+
+    /**
+     * Returns the named policy over the given number of pages, or null
+     */
+    public static CachePolicy forName(String name, int pages) {
+        if (name.equals("clock"))
+            return new Clock(pages);
+        if (name.equals("2q"))
+            return new TwoQueue(pages);
+        if (name.equals("arc"))
+            return new Arc(pages);
+        if (name.equals("lirs"))
+            return new Lirs(pages);
+        return null;
+    }
+
+    /**
+     * A page never filled since the last clear, -1 if there is none
+     */
+    protected int freePage() {
+        return (used < blocks.length) ? used++ : -1;
+    }
+
+    /**
+     * Second chance: the hand clears reference bits until it finds a page
+     * not used since it last passed.  What the cache always did.
+     */
+    public static class Clock extends CachePolicy {
+        private boolean[] reference;
+        private int hand;
+
+        public Clock(int pages) {
+            super(pages);
+        }
+
+        public void clear() {
+            super.clear();
+            reference = new boolean[blocks.length];
+            hand = blocks.length - 1;
+        }
+
+        public void hit(int page) {
+            reference[page] = true;
+        }
+
+        public int replace(int blockId) {
+            int page = freePage();
+            while (page == -1) {
+                hand = (hand + 1) % blocks.length;
+                if (!reference[hand])
+                    page = hand;
+                reference[hand] = false;
+            }
+            reference[page] = true;
+            blocks[page] = blockId;
+            return page;
+        }
+
+        public String name() {
+            return "clock";
+        }
+    }
+
+    /**
+     * 2Q: a block seen once waits in a small FIFO, A1in.  Blocks evicted
+     * from it are remembered in a ghost FIFO, A1out, and one that misses
+     * again while remembered goes to the LRU main queue, Am.  A scan only
+     * churns A1in.
+     */
+    public static class TwoQueue extends CachePolicy {
+        private IntList a1in;                 // pages, oldest first
+        private IntList am;                   // pages, least recent first
+        private IntList a1out;                // block ids, oldest first
+        private int kin;                      // A1in size before it yields
+        private int kout;                     // blocks A1out remembers
+
+        public TwoQueue(int pages) {
+            super(pages);
+            kin = Math.max(1, pages / 4);
+            kout = Math.max(1, pages / 2);
+        }
+
+        public void clear() {
+            super.clear();
+            if (a1in == null) {
+                a1in = new IntList(blocks.length);
+                am = new IntList(blocks.length);
+                a1out = new IntList(blocks.length / 2 + 1);
+            }
+            a1in.clear();
+            am.clear();
+            a1out.clear();
+        }
+
+        public void hit(int page) {
+            if (am.contains(page))
+                am.moveLast(page);
+        }
+
+        public int replace(int blockId) {
+            boolean seen = a1out.remove(blockId);
+            int page = freePage();
+            if (page == -1) {
+                if (a1in.size() > kin || am.isEmpty()) {
+                    page = a1in.removeFirst();
+                    a1out.add(blocks[page]);
+                    if (a1out.size() > kout)
+                        a1out.removeFirst();
+                }
+                else
+                    page = am.removeFirst();
+            }
+            blocks[page] = blockId;
+            if (seen)
+                am.add(page);
+            else
+                a1in.add(page);
+            return page;
+        }
+
+        public String name() {
+            return "2q";
+        }
+    }
+
+    /**
+     * ARC: T1 holds blocks used once recently, T2 blocks used at least
+     * twice.  Ghost lists B1 and B2 remember blocks evicted from each, and
+     * a miss found in one moves the target size p of T1 toward it.
+     */
+    public static class Arc extends CachePolicy {
+        private IntList t1;                 // pages, least recent first
+        private IntList t2;                 // pages, least recent first
+        private IntList b1;                 // block ids, least recent first
+        private IntList b2;                 // block ids, least recent first
+        private int p;                      // target size of T1
+
+        public Arc(int pages) {
+            super(pages);
+        }
+
+        public void clear() {
+            super.clear();
+            if (t1 == null) {
+                t1 = new IntList(blocks.length);
+                t2 = new IntList(blocks.length);
+                b1 = new IntList(blocks.length);
+                b2 = new IntList(blocks.length);
+            }
+            t1.clear();
+            t2.clear();
+            b1.clear();
+            b2.clear();
+            p = 0;
+        }
+
+        public void hit(int page) {
+            if (!t1.remove(page))
+                t2.remove(page);
+            t2.add(page);
+        }
+
+        public int replace(int blockId) {
+            int c = blocks.length;
+            int page;
+            if (b1.contains(blockId)) {
+                p = Math.min(c, p + Math.max(b2.size() / b1.size(), 1));
+                b1.remove(blockId);
+                page = evict(false);
+                t2.add(page);
+            }
+            else if (b2.contains(blockId)) {
+                p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+                b2.remove(blockId);
+                page = evict(true);
+                t2.add(page);
+            }
+            else {
+                int l1 = t1.size() + b1.size();
+                int l2 = t2.size() + b2.size();
+                if (l1 >= c) {
+                    if (t1.size() < c) {
+                        b1.removeFirst();
+                        page = evict(false);
+                    }
+                    else
+                        page = t1.removeFirst(); // dropped without a ghost
+                }
+                else {
+                    if (l1 + l2 >= 2 * c)
+                        b2.removeFirst();
+                    page = evict(false);
+                }
+                t1.add(page);
+            }
+            blocks[page] = blockId;
+            return page;
+        }
+
+        /**
+         * A free page, else the least recent page of T1 if T1 is over its
+         * target, else that of T2; the evicted block goes to the ghost list
+         */
+        private int evict(boolean inB2) {
+            int page = freePage();
+            if (page != -1)
+                return page;
+            if (!t1.isEmpty() &&
+                (t1.size() > p || (inB2 && t1.size() == p) || t2.isEmpty())) {
+                page = t1.removeFirst();
+                b1.add(blocks[page]);
+            }
+            else {
+                page = t2.removeFirst();
+                b2.add(blocks[page]);
+            }
+            return page;
+        }
+
+        public String name() {
+            return "arc";
+        }
+    }
+
+    /**
+     * LIRS: blocks with a short reuse distance (LIR) keep most pages; the
+     * rest hold HIR blocks, evicted first in FIFO order from Q.  Stack S
+     * orders recent blocks, resident or not, and an HIR block used again
+     * while still in S becomes LIR, demoting the LIR block at the bottom.
+     */
+    public static class Lirs extends CachePolicy {
+        private IntList s;                  // block ids, bottom first
+        private IntList q;                  // pages of resident HIR blocks
+        private boolean[] lir;              // whether each page holds an LIR block
+        private int lirBlocks;              // LIR blocks, all resident
+        private IntMap pageOf;              // resident block -> page
+        private int lirPages;               // pages for LIR blocks
+
+        public Lirs(int pages) {
+            super(pages);
+            lirPages = pages - Math.max(1, pages / 100);
+        }
+
+        public void clear() {
+            super.clear();
+            if (s == null) {
+                s = new IntList(3 * blocks.length);
+                q = new IntList(blocks.length);
+                pageOf = new IntMap(blocks.length);
+            }
+            s.clear();
+            q.clear();
+            pageOf.clear();
+            lir = new boolean[blocks.length];
+            lirBlocks = 0;
+        }
+
+        /**
+         * Whether blockId is an LIR block; those are always resident
+         */
+        private boolean isLir(int blockId) {
+            int page = pageOf.get(blockId);
+            return page != -1 && lir[page];
+        }
+
+        public void hit(int page) {
+            int blockId = blocks[page];
+            if (lir[page]) {
+                s.moveLast(blockId);
+                prune();
+            }
+            else if (s.contains(blockId)) {
+                s.moveLast(blockId);
+                q.remove(page);
+                lir[page] = true;
+                lirBlocks++;
+                demoteBottom();
+            }
+            else {
+                s.add(blockId);
+                q.moveLast(page);
+            }
+        }
+
+        public int replace(int blockId) {
+            int page = freePage();
+            if (page == -1) {
+                page = q.removeFirst();
+                pageOf.remove(blocks[page]);  // stays in S if it is there
+            }
+            blocks[page] = blockId;
+            pageOf.put(blockId, page);
+
+            if (lirBlocks < lirPages && !s.contains(blockId)) {
+                lir[page] = true;             // warming up
+                lirBlocks++;
+                s.add(blockId);
+            }
+            else if (s.contains(blockId)) {
+                s.moveLast(blockId);
+                lir[page] = true;
+                lirBlocks++;
+                demoteBottom();
+            }
+            else {
+                s.add(blockId);
+                q.add(page);
+            }
+            trim();
+            return page;
+        }
+
+        /**
+         * Turns the LIR block at the bottom of S into a resident HIR one.
+         * S may have had no LIR block before the one just promoted when
+         * the stripe leaves no pages to LIR blocks, so prune first.
+         */
+        private void demoteBottom() {
+            prune();
+            int page = pageOf.get(s.removeFirst());
+            lir[page] = false;
+            lirBlocks--;
+            q.add(page);
+            prune();
+        }
+
+        /**
+         * Drops HIR blocks from the bottom of S until an LIR block is there
+         */
+        private void prune() {
+            while (!s.isEmpty() && !isLir(s.first()))
+                s.removeFirst();
+        }
+
+        /**
+         * Keeps S at most three times the cache by forgetting its oldest
+         * non-resident blocks
+         */
+        private void trim() {
+            int blockId = s.first();
+            while (s.size() > 3 * blocks.length && blockId != -1) {
+                int next = s.next(blockId);
+                if (pageOf.get(blockId) == -1)  // not resident, so not LIR
+                    s.remove(blockId);
+                blockId = next;
+            }
+        }
+
+        public String name() {
+            return "lirs";
+        }
+    }
+}
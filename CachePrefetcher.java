@@ -0,0 +1,56 @@
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ *
+ * CachePrefetcher.java
+ *
+ * Kernel thread that reads blocks ahead into the cache.  The file system
+ * hands it the next blocks of a file being read sequentially and goes on;
+ * the blocks are read while the reader works on the ones it has, so its
+ * next read hits the cache.
+ *
+ */
+public class CachePrefetcher extends Thread {
+    private final static int maxQueued = 16;       // requests waiting at most
+
+    private Cache cache;
+    private Vector<int[]> queue = new Vector<int[]>();
+
+    public CachePrefetcher(Cache cache) {
+        this.cache = cache;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues the first of the given blocks to be read ahead, as many as the
+     * cache's readahead budget admits, and returns how many.  Nothing is
+     * queued if too many requests are waiting already.
+     */
+    public synchronized int submit(int blockIds[]) {
+        if (queue.size() >= maxQueued)
+            return 0;
+        int n = cache.admit(blockIds.length);
+        if (n == 0)
+            return 0;
+        queue.addElement(Arrays.copyOf(blockIds, n));
+        notify();
+        return n;
+    }
+
+    private synchronized int[] next() {
+        while (queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+        }
+        return queue.remove(0);
+    }
+
+    public void run() {
+        while (true)
+            cache.prefetch(next());
+    }
+}
@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * CacheStore.java
+ *
+ * Where one cache stripe keeps the data of its pages.  Pick one at boot
+ * with cachestore=heap|slab.  A store is only used under its stripe's
+ * lock.
+ *
+ */
+public abstract class CacheStore {
+    protected int blockSize;          // bytes per page
+
+    protected CacheStore(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Copies the block in page into buffer
+     */
+    public abstract void read(int page, byte buffer[]);
+
+    /**
+     * Copies buffer into page
+     */
+    public abstract void write(int page, byte buffer[]);
+
+    public abstract String name();
+
+    /**
+     * A copy of the block in page
+     */
+    public byte[] copy(int page) {
+        byte[] block = new byte[blockSize];
+        read(page, block);
+        return block;
+    }
+
+    /**
+     * Returns the named store for the given number of pages, or null
+     */
+    public static CacheStore forName(String name, int pages, int blockSize) {
+        if (name.equals("heap"))
+            return new Heap(pages, blockSize);
+        if (name.equals("slab"))
+            return new Slab(pages, blockSize);
+        return null;
+    }
+
+    /**
+     * One byte[] per page on the Java heap, allocated on first use
+     */
+    public static class Heap extends CacheStore {
+        private byte[][] pages;
+
+        public Heap(int pages, int blockSize) {
+            super(blockSize);
+            this.pages = new byte[pages][];
+        }
+
+        public void read(int page, byte buffer[]) {
+            System.arraycopy(pages[page], 0, buffer, 0, blockSize);
+        }
+
+        public void write(int page, byte buffer[]) {
+            if (pages[page] == null)
+                pages[page] = new byte[blockSize];
+            System.arraycopy(buffer, 0, pages[page], 0, blockSize);
+        }
+
+        public String name() {
+            return "heap";
+        }
+    }
+
+    /**
+     * Pages carved as fixed slots out of direct ByteBuffer slabs of up to
+     * a megabyte, allocated as pages are first used.  The data lives off
+     * the Java heap, so the collector never scans or copies it.
+     */
+    public static class Slab extends CacheStore {
+        private final static int slabBytes = 1 << 20;
+
+        private ByteBuffer[] slabs;
+        private int slotsPerSlab;
+
+        public Slab(int pages, int blockSize) {
+            super(blockSize);
+            slotsPerSlab = Math.max(1, Math.min(pages, slabBytes / blockSize));
+            slabs = new ByteBuffer[(pages + slotsPerSlab - 1) / slotsPerSlab];
+        }
+
+        /**
+         * The slab holding page, positioned at its slot
+         */
+        private ByteBuffer slot(int page) {
+            int n = page / slotsPerSlab;
+            if (slabs[n] == null)
+                slabs[n] = ByteBuffer.allocateDirect(slotsPerSlab * blockSize);
+            slabs[n].position((page % slotsPerSlab) * blockSize);
+            return slabs[n];
+        }
+
+        public void read(int page, byte buffer[]) {
+            slot(page).get(buffer, 0, blockSize);
+        }
+
+        public void write(int page, byte buffer[]) {
+            slot(page).put(buffer, 0, blockSize);
+        }
+
+        public String name() {
+            return "slab";
+        }
+    }
+}
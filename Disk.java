@@ -1,161 +1,573 @@
 import java.io.*;
+import java.util.Vector;
+import java.util.Hashtable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
-public class Disk extends Thread {
+public class Disk extends Thread implements BlockDevice {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+
+    // backing stores for the disk image
+    public static final int HEAP = 0;	// whole image in a byte[], rewritten on sync
+    public static final int MAPPED = 1;	// image mapped from the DISK file
+    public static final int LAZY = 2;	// byte[] filled in chunks on first use
+
+    private DiskModel model;		// service times and track layout
     private int diskSize;
 
     private byte data[];
 
+    // MAPPED store: the image is mapped in segments so that a sync only
+    // forces the segments written since the previous sync
+    private final int segmentBlocks = 256;
+    private MappedByteBuffer segments[];
+    private boolean dirtySegments[];
+    private RandomAccessFile image;
+    private int store;
+
+    // LAZY store: the first chunk, holding the superblock and the inodes
+    // of a default file system, is loaded at construction.  Every other
+    // chunk is read in when a block in it is first touched, or earlier by
+    // a background prefetcher.  A sync writes back the chunks written to.
+    private final int chunkBlocks = 64;
+    private boolean loadedChunks[];
+    private boolean dirtyChunks[];
+    private String fileName;		// backing file of the image
+
     private int command;
     private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
 
-    private byte[] buffer;
+    // dispatch policies for the request queue
+    public static final int FCFS = 0;	// arrival order
+    public static final int SCAN = 1;	// elevator, reversing at the last request
+    public static final int CLOOK = 2;	// one-way sweep, then back to the lowest
+    private static final String policyNames[] = { "FCFS", "SCAN", "C-LOOK" };
+
+    private final int queueSize = 16;	// outstanding requests accepted
+    private final long deadline = 500000; // usec before a request jumps the queue
+    private Vector<DiskRequest> queue;	// pending requests in arrival order
+    private int policy;
+    private boolean sweepUp;		// SCAN direction
+    private int reqWaiters;		// callers refused while the queue was full
+
+    // The disk clock, in microseconds.  With virtual time the disk does
+    // not sleep through service times; it adds them to a modeled clock
+    // that also stamps and ages queued requests.
+    private boolean virtualTime;
+    private long virtualClock;
+    private long deviceTime;		// modeled service time in total (usec)
+    private long startTime;		// wall clock when the disk started (ms)
+
+    // per-policy counters
+    private long seekTracks[] = new long[ policyNames.length ];
+    private long queueWait[] = new long[ policyNames.length ];
+    private long served[] = new long[ policyNames.length ];
+
+    // instrumentation, and when each refused caller was first turned away
+    private DiskStats diskStats;
+    private Hashtable<Thread, Long> refusedAt;
+    private long dispatched;		// disk clock when current was dispatched
+
+    private DiskRequest current;
     private int currentBlockId;
-    private int targetBlockId;
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, HEAP );
+    }
+
+    public Disk( int totalBlocks, int store ) {
+	this( totalBlocks, store, "DISK" );
+    }
+
+    public Disk( int totalBlocks, int store, String fileName ) {
+	this.fileName = fileName;
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
 	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	queue = new Vector<DiskRequest>( );
+	policy = CLOOK;
+	sweepUp = true;
+	reqWaiters = 0;
+	model = new DiskModel.Classic( );
+	virtualTime = false;
+	virtualClock = 0;
+	deviceTime = 0;
+	startTime = System.currentTimeMillis( );
+	diskStats = new DiskStats( diskSize, queueSize );
+	refusedAt = new Hashtable<Thread, Long>( );
+	current = null;
 	currentBlockId = 0;
-	targetBlockId = 0;
+	this.store = store;
+	if ( store == MAPPED && mapImage( ) )
+	    return;
+	data = new byte[ diskSize * blockSize ];
+	if ( store == LAZY && openImage( ) )
+	    return;
+	this.store = HEAP;
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
+	    FileInputStream ifstream = new FileInputStream( fileName );
 	    int readableSize = ( ifstream.available( ) < data.length ) ?
 		ifstream.available( ) : data.length; 
 	    ifstream.read( data, 0, readableSize );
 	    ifstream.close( );
 	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
-
-	if ( blockId < 0 || blockId > diskSize ) {
-	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+    // Opens the DISK file for the LAZY store and loads the first chunk.
+    // Returns false if the file cannot be opened.
+    private boolean openImage( ) {
+	try {
+	    File file = new File( fileName );
+	    if ( !file.exists( ) )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    image = new RandomAccessFile( file, "rw" );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
 	    return false;
 	}
+	int count = ( diskSize + chunkBlocks - 1 ) / chunkBlocks;
+	loadedChunks = new boolean[ count ];
+	dirtyChunks = new boolean[ count ];
+	loadChunk( 0 );
+	return true;
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
+    // Reads a chunk of the image in from the file unless it is loaded.
+    // Bytes past the end of the file stay zero.
+    private void loadChunk( int chunk ) {
+	synchronized ( loadedChunks ) {
+	    if ( loadedChunks[chunk] )
+		return;
+	    try {
+		long offset = ( long )chunk * chunkBlocks * blockSize;
+		int length = ( int )Math.min( chunkBlocks * blockSize,
+					      data.length - offset );
+		long available = Math.max( 0, image.length( ) - offset );
+		image.seek( offset );
+		image.readFully( data, ( int )offset,
+				 ( int )Math.min( length, available ) );
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	    loadedChunks[chunk] = true;
+	}
+    }
+
+    // Warms the rest of the image from a low-priority thread
+    private void startPrefetcher( ) {
+	Thread prefetcher = new Thread( new Runnable( ) {
+		public void run( ) {
+		    for ( int i = 1; i < loadedChunks.length; i++ ) {
+			loadChunk( i );
+			Thread.yield( );
+		    }
+		}
+	    } );
+	prefetcher.setDaemon( true );
+	prefetcher.setPriority( MIN_PRIORITY );
+	prefetcher.start( );
+    }
+
+    // Maps the DISK file, growing it to diskSize blocks if needed.  Returns
+    // false, after closing the file, if the image cannot be mapped.
+    private boolean mapImage( ) {
+	try {
+	    File file = new File( fileName );
+	    if ( !file.exists( ) )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    image = new RandomAccessFile( file, "rw" );
+	    long imageSize = ( long )diskSize * blockSize;
+	    if ( image.length( ) < imageSize )
+		image.setLength( imageSize );
+
+	    int count = ( diskSize + segmentBlocks - 1 ) / segmentBlocks;
+	    segments = new MappedByteBuffer[ count ];
+	    dirtySegments = new boolean[ count ];
+	    FileChannel channel = image.getChannel( );
+	    for ( int i = 0; i < count; i++ ) {
+		long offset = ( long )i * segmentBlocks * blockSize;
+		long length = Math.min( ( long )segmentBlocks * blockSize,
+					imageSize - offset );
+		segments[i] = channel.map( FileChannel.MapMode.READ_WRITE,
+					   offset, length );
+	    }
 	    return true;
-	} else
+	} catch ( IOException e ) {
+	    SysLib.cerr( "threadOS: " + fileName + " cannot be mapped (" + e.toString( ) +
+			 "), using heap\n" );
+	    segments = null;
+	    dirtySegments = null;
+	    try {
+		if ( image != null )
+		    image.close( );
+	    } catch ( IOException ce ) { }
+	    image = null;
 	    return false;
+	}
+    }
+
+    // The request methods return the queued request, whose waitFor( )
+    // returns once the disk has served it, or null if the queue is full.
+    // A request for a block out of range comes back already failed.
+
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+
+	DiskRequest request = new DiskRequest( READ, blockId, buffer );
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    request.fail( );
+	    return request;
+	}
+	return submit( request );
+    }
+
+    // Reads blockIds[i] into buffers[i] for every i as one request
+    public synchronized DiskRequest read( int blockIds[], byte buffers[][] ) {
+
+	if ( !validVector( blockIds, buffers ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    DiskRequest request = new DiskRequest( READ, new int[0], null );
+	    request.fail( );
+	    return request;
+	}
+	return submit( new DiskRequest( READ, blockIds, buffers ) );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	DiskRequest request = new DiskRequest( WRITE, blockId, buffer );
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    request.fail( );
+	    return request;
 	}
+	return submit( request );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    // Writes buffers[i] to blockIds[i] for every i as one request
+    public synchronized DiskRequest write( int blockIds[], byte buffers[][] ) {
+
+	if ( !validVector( blockIds, buffers ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+	    DiskRequest request = new DiskRequest( WRITE, new int[0], null );
+	    request.fail( );
+	    return request;
+	}
+	return submit( new DiskRequest( WRITE, blockIds, buffers ) );
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
+    private boolean validVector( int blockIds[], byte buffers[][] ) {
+	if ( blockIds == null || buffers == null || blockIds.length == 0 ||
+	     blockIds.length != buffers.length )
 	    return false;
+	for ( int i = 0; i < blockIds.length; i++ )
+	    if ( blockIds[i] < 0 || blockIds[i] >= diskSize )
+		return false;
+	return true;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    public synchronized DiskRequest sync( ) {
+	// System.out.println( "DISK sync notified the disk" );
+	return submit( new DiskRequest( SYNC, new int[0], null ) );
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
+    // Requests waiting or in service, for devices that balance load
+    public synchronized int queueDepth( ) {
+	return queue.size( ) + ( ( current != null ) ? 1 : 0 );
+    }
+
+    public synchronized boolean isFull( ) {
+	return queue.size( ) >= queueSize;
+    }
+
+    // Block the head is over
+    public synchronized int headPosition( ) {
+	return currentBlockId;
+    }
+
+    // True if a request would be queued now.  Otherwise the caller is
+    // counted as refused, to be woken by a disk interrupt once a slot
+    // frees up.  Lets a device built over several disks queue on all of
+    // them or on none.
+    public synchronized boolean hasRoom( ) {
+	if ( queue.size( ) >= queueSize ) {
+	    refuse( );
 	    return false;
+	}
+	return true;
+    }
+
+    // Queues a request unless the queue is full.  A refused caller sleeps
+    // on COND_DISK_REQ, so it is counted to get one wakeup later.
+    private DiskRequest submit( DiskRequest request ) {
+	if ( queue.size( ) >= queueSize ) {
+	    refuse( );
+	    return null;
+	}
+	request.submitted = now( );
+	Long refused = refusedAt.remove( Thread.currentThread( ) );
+	if ( refused != null )
+	    diskStats.slotWait( request.submitted - refused );
+	queue.addElement( request );
+	diskStats.depth( request.submitted, queue.size( ) );
+	notify( );
+	return request;
+    }
+
+    // Counts the caller as refused, noting when it was first turned away
+    private void refuse( ) {
+	reqWaiters++;
+	if ( !refusedAt.containsKey( Thread.currentThread( ) ) )
+	    refusedAt.put( Thread.currentThread( ), now( ) );
+    }
+
+    public synchronized void setPolicy( int policy ) {
+	if ( policy >= 0 && policy < policyNames.length )
+	    this.policy = policy;
+    }
+
+    // Set before start( ): serve requests on the modeled clock instead of
+    // sleeping for their service times
+    public synchronized void setVirtualTime( boolean virtualTime ) {
+	this.virtualTime = virtualTime;
+    }
+
+    // Set before start( ): the device timing model
+    public synchronized void setModel( DiskModel model ) {
+	this.model = model;
+    }
+
+    // Current disk clock in microseconds
+    private synchronized long now( ) {
+	return virtualTime ? virtualClock : System.nanoTime( ) / 1000;
+    }
+
+    // Per-policy totals (requests served, tracks crossed and queue wait),
+    // then modeled device time next to the disk thread's CPU time, then
+    // the service times, slot waits, seeks, queue depth and block heat
+    public synchronized String stats( ) {
+	String s = "";
+	for ( int i = 0; i < policyNames.length; i++ ) {
+	    if ( served[i] == 0 )
+		continue;
+	    s += policyNames[i] + ": " + served[i] + " requests, " +
+		seekTracks[i] + " tracks seeked, " + queueWait[i] / 1000 +
+		" ms queued (" + ( queueWait[i] / served[i] / 1000 ) +
+		" ms avg)\n";
+	}
+	ThreadMXBean threads = ManagementFactory.getThreadMXBean( );
+	long cpuTime = threads.isThreadCpuTimeSupported( ) ?
+	    threads.getThreadCpuTime( getId( ) ) / 1000000 : -1;
+	s += model.name( ) + " device time " + deviceTime / 1000 + " ms" +
+	    ( virtualTime ? " (virtual)" : "" ) + ", disk cpu time " +
+	    cpuTime + " ms, wall time " +
+	    ( System.currentTimeMillis( ) - startTime ) + " ms\n";
+	return s + diskStats.toString( );
     }
 
     private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+	while ( queue.isEmpty( ) ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	current = queue.remove( nextRequest( ) );
+	command = current.command;
+	dispatched = now( );
+	queueWait[policy] += dispatched - current.submitted;
+	diskStats.depth( dispatched, queue.size( ) );
     }
 
+    // Picks the index of the next request to serve.  A SYNC is a barrier:
+    // nothing queued behind it is served before it, and it is served once
+    // it is the oldest request.  A request older than the deadline is
+    // served next whatever the policy.
+    private int nextRequest( ) {
+	int eligible = 0;
+	while ( eligible < queue.size( ) &&
+		queue.elementAt( eligible ).command != SYNC )
+	    eligible++;
+	if ( eligible == 0 || policy == FCFS ||
+	     now( ) - queue.elementAt( 0 ).submitted > deadline )
+	    return 0;
+
+	int headTrack = model.track( currentBlockId );
+	if ( policy == SCAN ) {
+	    int next = closest( eligible, headTrack, sweepUp );
+	    if ( next < 0 ) {
+		sweepUp = !sweepUp;
+		next = closest( eligible, headTrack, sweepUp );
+	    }
+	    return next;
+	}
+	int next = closest( eligible, headTrack, true );	// C-LOOK
+	return ( next >= 0 ) ? next : closest( eligible, -1, true );
+    }
+
+    // Index of the request among the first n closest to track in the given
+    // direction (the track itself included), -1 if there is none
+    private int closest( int n, int track, boolean up ) {
+	int best = -1;
+	int bestDistance = Integer.MAX_VALUE;
+	for ( int i = 0; i < n; i++ ) {
+	    int distance = model.track( queue.elementAt( i ).blockId ) - track;
+	    if ( !up )
+		distance = -distance;
+	    if ( distance >= 0 && distance < bestDistance ) {
+		best = i;
+		bestDistance = distance;
+	    }
+	}
+	return best;
+    }
+
+    // Waits out the service time the device model gives the current request
     private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int tracks = 0;
+	int blockIds[] = current.blockIds;
+	int head = currentBlockId;
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    tracks += Math.abs( model.track( blockIds[i] ) - model.track( head ) );
+	    head = blockIds[i];
+	}
+	long serviceTime;
+	synchronized ( this ) {
+	    serviceTime = model.serviceTime( currentBlockId, blockIds,
+					     command == WRITE, queue.size( ) );
+	    currentBlockId = head;
+	    diskStats.seeked( tracks );
+	}
+	serve( serviceTime, tracks );
+    }
+
+    // Charges a service time in microseconds to the disk clock, sleeping
+    // through it unless the disk runs on virtual time
+    private void serve( long serviceTime, int tracks ) {
+	synchronized ( this ) {
+	    deviceTime += serviceTime;
+	    seekTracks[policy] += tracks;
+	    if ( virtualTime ) {
+		virtualClock += serviceTime;
+		return;
+	    }
+	}
 	try {
-	    Thread.sleep( seekTime );
+	    Thread.sleep( serviceTime / 1000, ( int )( serviceTime % 1000 ) * 1000 );
 	} catch( InterruptedException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
-	currentBlockId = targetBlockId;
     }
 
     private synchronized void finishCommand( ) {
+	diskStats.served( command, now( ) - dispatched );
+	diskStats.touched( current.blockIds, command == WRITE );
 	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+	current.complete( );	// wakes only the thread waiting for it
+	current = null;
+	served[policy]++;
+	if ( reqWaiters > 0 ) {
+	    reqWaiters--;
+	    SysLib.disk( ); // a disk interrupt: a queue slot is free
+	}
+    }
+
+    private void readBlock( int blockId, byte buffer[] ) {
+	if ( store == LAZY )
+	    loadChunk( blockId / chunkBlocks );
+	if ( store == MAPPED ) {
+	    MappedByteBuffer segment = segments[ blockId / segmentBlocks ];
+	    segment.position( ( blockId % segmentBlocks ) * blockSize );
+	    segment.get( buffer, 0, blockSize );
+	} else
+	    System.arraycopy( data, blockId * blockSize, 
+			      buffer, 0, 
+			      blockSize );
+    }
+
+    private void writeBlock( int blockId, byte buffer[] ) {
+	if ( store == LAZY ) {
+	    loadChunk( blockId / chunkBlocks );
+	    dirtyChunks[ blockId / chunkBlocks ] = true;
+	}
+	if ( store == MAPPED ) {
+	    MappedByteBuffer segment = segments[ blockId / segmentBlocks ];
+	    segment.position( ( blockId % segmentBlocks ) * blockSize );
+	    segment.put( buffer, 0, blockSize );
+	    dirtySegments[ blockId / segmentBlocks ] = true;
+	} else
+	    System.arraycopy( buffer, 0, 
+			      data, blockId * blockSize, 
+			      blockSize );
+    }
+
+    private void syncImage( ) {
+	if ( store == MAPPED ) {
+	    // only the segments written since the last sync reach the file
+	    for ( int i = 0; i < segments.length; i++ )
+		if ( dirtySegments[i] ) {
+		    dirtySegments[i] = false;
+		    segments[i].force( );
+		}
+	    return;
+	}
+	if ( store == LAZY ) {
+	    // only the chunks written since the last sync reach the file
+	    try {
+		for ( int i = 0; i < dirtyChunks.length; i++ )
+		    if ( dirtyChunks[i] ) {
+			dirtyChunks[i] = false;
+			long offset = ( long )i * chunkBlocks * blockSize;
+			image.seek( offset );
+			image.write( data, ( int )offset,
+				     ( int )Math.min( chunkBlocks * blockSize,
+						      data.length - offset ) );
+		    }
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) );
+	    }
+	    return;
+	}
+	try {
+	    FileOutputStream ofstream = new FileOutputStream( fileName );
+	    ofstream.write( data );
+	    ofstream.close( );
+	} catch ( FileNotFoundException e ) {
+	    SysLib.cerr( e.toString( ) );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) );
+	}
     }
 
     public void run ( ) {
-	
+	if ( store == LAZY )
+	    startPrefetcher( );
+
 	while ( true ) {
 	    waitCommand( );
-	    seek( );
+	    if ( command != SYNC )
+		seek( );
 	    // System.out.println( "Disk: command = " + command );
 	    switch( command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		for ( int i = 0; i < current.blockIds.length; i++ )
+		    readBlock( current.blockIds[i], current.buffers[i] );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		for ( int i = 0; i < current.blockIds.length; i++ )
+		    writeBlock( current.blockIds[i], current.buffers[i] );
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
-		}
+		syncImage( );
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
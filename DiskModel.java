@@ -0,0 +1,163 @@
+/**
+ * 
+ * DiskModel.java
+ * 
+ * Timing model behind Disk.seek( ).  A model turns a request into a service
+ * time in microseconds and tells the elevator which track a block sits on.
+ * Pick one at boot with device=classic|hdd|ssd|nvme.
+ *
+ */
+public abstract class DiskModel {
+
+    // Microseconds to serve blockIds in order with the head at head.
+    // queued is the number of other requests waiting behind this one.
+    public abstract long serviceTime( int head, int blockIds[],
+				      boolean write, int queued );
+
+    // Track holding a block, for seek distances and elevator ordering
+    public abstract int track( int blockId );
+
+    public abstract String name( );
+
+    // Returns the named model for a disk of diskSize blocks, or null
+    public static DiskModel forName( String name, int diskSize, int channels ) {
+	if ( name.equals( "classic" ) )
+	    return new Classic( );
+	if ( name.equals( "hdd" ) )
+	    return new Rotational( diskSize );
+	if ( name.equals( "ssd" ) )
+	    return new Ssd( );
+	if ( name.equals( "nvme" ) )
+	    return new Nvme( channels );
+	return null;
+    }
+
+    // Microseconds to move blocks blocks at bytesPerSecond
+    protected static long transfer( int blocks, long bytesPerSecond ) {
+	return ( long )blocks * Disk.blockSize * 1000000 / bytesPerSecond;
+    }
+
+    // The original ThreadOS drive: 10 blocks a track, 20 ms to reach a block
+    // plus 1 ms per track crossed.  A block that follows the previous one
+    // streams in at a tenth of the transfer time.
+    public static class Classic extends DiskModel {
+	private final int trackSize = 10;
+	private final int transferTime = 20;
+	private final int delayPerTrack = 1;
+	private final int streamTime = transferTime / trackSize;
+
+	public long serviceTime( int head, int blockIds[],
+				 boolean write, int queued ) {
+	    long seekTime = 0;
+	    for ( int i = 0; i < blockIds.length; i++ ) {
+		if ( i > 0 && blockIds[i] == blockIds[i - 1] + 1 )
+		    seekTime += streamTime;
+		else
+		    seekTime += transferTime + delayPerTrack
+			* Math.abs( track( blockIds[i] ) - track( head ) );
+		head = blockIds[i];
+	    }
+	    return seekTime * 1000;
+	}
+
+	public int track( int blockId ) {
+	    return blockId / trackSize;
+	}
+
+	public String name( ) {
+	    return "classic";
+	}
+    }
+
+    // A 7200 rpm drive with 64 blocks a track.  A seek costs a settle time
+    // plus a share of the full stroke growing with the square root of the
+    // distance, then half a rotation on average before the block arrives.
+    public static class Rotational extends DiskModel {
+	private final int trackSize = 64;
+	private final long rotation = 8333;		// usec a revolution
+	private final long settle = 800;		// track-to-track seek
+	private final long fullStroke = 12000;		// end-to-end seek
+	private final int tracks;
+
+	public Rotational( int diskSize ) {
+	    tracks = Math.max( 1, ( diskSize + trackSize - 1 ) / trackSize );
+	}
+
+	public long serviceTime( int head, int blockIds[],
+				 boolean write, int queued ) {
+	    long time = 0;
+	    for ( int i = 0; i < blockIds.length; i++ ) {
+		if ( i == 0 || blockIds[i] != blockIds[i - 1] + 1 ) {
+		    int distance = Math.abs( track( blockIds[i] ) - track( head ) );
+		    if ( distance > 0 )
+			time += settle + ( long )( ( fullStroke - settle )
+			    * Math.sqrt( ( double )distance / tracks ) );
+		    time += rotation / 2;
+		}
+		time += rotation / trackSize;		// the block passes by
+		head = blockIds[i];
+	    }
+	    return time;
+	}
+
+	public int track( int blockId ) {
+	    return blockId / trackSize;
+	}
+
+	public String name( ) {
+	    return "hdd";
+	}
+    }
+
+    // A SATA flash drive: a flat access latency wherever the block is, a
+    // dearer program latency for writes, and a 520 MB/s link.
+    public static class Ssd extends DiskModel {
+	private final long readLatency = 90;
+	private final long writeLatency = 250;
+	private final long bandwidth = 520L * 1000 * 1000;
+
+	public long serviceTime( int head, int blockIds[],
+				 boolean write, int queued ) {
+	    return ( write ? writeLatency : readLatency )
+		+ transfer( blockIds.length, bandwidth );
+	}
+
+	public int track( int blockId ) {
+	    return 0;				// no head to move
+	}
+
+	public String name( ) {
+	    return "ssd";
+	}
+    }
+
+    // An NVMe-like drive whose channels serve requests side by side.  The
+    // disk thread serves one request at a time, so a request that finds
+    // others queued is charged its latency divided among the channels
+    // they would keep busy together.
+    public static class Nvme extends DiskModel {
+	private final long readLatency = 20;
+	private final long writeLatency = 30;
+	private final long bandwidth = 3000L * 1000 * 1000;
+	private final int channels;
+
+	public Nvme( int channels ) {
+	    this.channels = Math.max( 1, channels );
+	}
+
+	public long serviceTime( int head, int blockIds[],
+				 boolean write, int queued ) {
+	    int parallel = Math.min( channels, queued + 1 );
+	    return ( ( write ? writeLatency : readLatency )
+		     + transfer( blockIds.length, bandwidth ) ) / parallel;
+	}
+
+	public int track( int blockId ) {
+	    return 0;
+	}
+
+	public String name( ) {
+	    return "nvme (" + channels + " channels)";
+	}
+    }
+}
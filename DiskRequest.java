@@ -0,0 +1,73 @@
+/**
+ * 
+ * DiskRequest.java
+ * 
+ * One command waiting in, or being served from, the Disk request queue.
+ * A READ or WRITE may cover several blocks, each with its own buffer.
+ * A request made of parts, such as one split over striped disks, is
+ * complete once all of its parts are.
+ *
+ */
+public class DiskRequest {
+    public final int command;        // Disk READ, WRITE or SYNC
+    public final int blockId;        // first target block, 0 for SYNC
+    public final int[] blockIds;     // target blocks, empty for SYNC
+    public final byte[][] buffers;   // caller's buffers, one per block
+    public long submitted;           // disk clock when queued (usec)
+    private DiskRequest parts[];     // requests this one is made of
+    private boolean finished;        // set by the disk once served
+    private boolean failed;          // refused, e.g. a block out of range
+
+    public DiskRequest( int command, int blockId, byte[] buffer ) {
+	this( command, new int[] { blockId }, new byte[][] { buffer } );
+    }
+
+    public DiskRequest( int command, int[] blockIds, byte[][] buffers ) {
+	this.command = command;
+	this.blockIds = blockIds;
+	this.buffers = buffers;
+	blockId = ( blockIds.length > 0 ) ? blockIds[0] : 0;
+	submitted = 0;
+	finished = false;
+	failed = false;
+    }
+
+    public DiskRequest( DiskRequest parts[] ) {
+	this( 0, new int[0], null );
+	this.parts = parts;
+    }
+
+    // Called by the disk thread once the request has been served
+    public synchronized void complete( ) {
+	finished = true;
+	notifyAll( );
+    }
+
+    // Completes the request without serving it
+    public synchronized void fail( ) {
+	failed = true;
+	complete( );
+    }
+
+    // Blocks the caller until the request completes; false if it failed
+    public boolean waitFor( ) {
+	if ( parts != null ) {
+	    boolean ok = true;
+	    for ( int i = 0; i < parts.length; i++ )
+		ok = parts[i].waitFor( ) && ok;
+	    return ok;
+	}
+	synchronized ( this ) {
+	    return waitFinished( );
+	}
+    }
+
+    private boolean waitFinished( ) {
+	while ( !finished ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) { }
+	}
+	return !failed;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ * DiskStats.java
+ *
+ * Instrumentation of one Disk: service time per command, time callers
+ * spent refused for a queue slot, a seek distance histogram, queue depth
+ * over time and a per-block access heat map.  All times are on the disk
+ * clock, in microseconds.  The disk updates it under its own monitor.
+ *
+ */
+
+public class DiskStats {
+    private static final String commandNames[] = { "idle", "read", "write", "sync" };
+
+    // service time per command, from dispatch to completion
+    private long commands[] = new long[ commandNames.length ];
+    private long serviceTime[] = new long[ commandNames.length ];
+    private long maxServiceTime[] = new long[ commandNames.length ];
+
+    // callers that slept on COND_DISK_REQ and how long until queued
+    private long slotWaits;
+    private long slotWaitTime;
+    private long maxSlotWait;
+
+    // seek distances in tracks: 0, 1, 2-3, 4-7, ... the last bucket open
+    private long seekBuckets[] = new long[ 12 ];
+
+    // time spent at each queue depth, and the depth every sampleInterval
+    private final long sampleInterval = 100000;	// usec
+    private final int samples = 60;		// most recent samples kept
+    private long depthTime[];
+    private int depth;
+    private int maxDepth;
+    private long lastChange;
+    private long firstChange;
+    private int depthSamples[] = new int[ samples ];
+    private int sampleCount;
+    private long nextSample;
+
+    // accesses per block
+    private int reads[];
+    private int writes[];
+
+    public DiskStats( int diskSize, int queueSize ) {
+	depthTime = new long[ queueSize + 1 ];
+	reads = new int[ diskSize ];
+	writes = new int[ diskSize ];
+	lastChange = -1;
+    }
+
+    // A command served in the given time
+    public void served( int command, long time ) {
+	commands[command]++;
+	serviceTime[command] += time;
+	maxServiceTime[command] = Math.max( maxServiceTime[command], time );
+    }
+
+    // A read or write that crossed so many tracks
+    public void seeked( int tracks ) {
+	int bucket = 0;
+	while ( tracks > 0 && bucket < seekBuckets.length - 1 ) {
+	    bucket++;
+	    tracks >>= 1;
+	}
+	seekBuckets[bucket]++;
+    }
+
+    // Blocks read or written by a served command
+    public void touched( int blockIds[], boolean write ) {
+	for ( int i = 0; i < blockIds.length; i++ )
+	    if ( write )
+		writes[ blockIds[i] ]++;
+	    else
+		reads[ blockIds[i] ]++;
+    }
+
+    // A refused caller got its request queued after waiting so long
+    public void slotWait( long time ) {
+	slotWaits++;
+	slotWaitTime += time;
+	maxSlotWait = Math.max( maxSlotWait, time );
+    }
+
+    // The number of queued requests changed to newDepth at time now
+    public void depth( long now, int newDepth ) {
+	if ( lastChange < 0 ) {
+	    firstChange = lastChange = nextSample = now;
+	}
+	depthTime[depth] += now - lastChange;
+	while ( nextSample <= now ) {	// the depth held up to now
+	    depthSamples[ sampleCount++ % samples ] = depth;
+	    nextSample += sampleInterval;
+	}
+	lastChange = now;
+	depth = newDepth;
+	maxDepth = Math.max( maxDepth, depth );
+    }
+
+    public String toString( ) {
+	String s = "";
+	for ( int i = 1; i < commandNames.length; i++ ) {
+	    if ( commands[i] == 0 )
+		continue;
+	    s += commandNames[i] + ": " + commands[i] + " served, " +
+		( serviceTime[i] / commands[i] ) + " us avg, " +
+		maxServiceTime[i] + " us max\n";
+	}
+	s += "slot waits: " + slotWaits + ", " + slotWaitTime / 1000 + " ms" +
+	    ( slotWaits > 0 ? " (" + ( slotWaitTime / slotWaits ) +
+	      " us avg, " + maxSlotWait + " us max)" : "" ) + "\n";
+
+	s += "seek tracks:";
+	for ( int i = 0; i < seekBuckets.length; i++ ) {
+	    if ( seekBuckets[i] == 0 )
+		continue;
+	    int low = ( i == 0 ) ? 0 : 1 << ( i - 1 );
+	    String range = ( i <= 1 ) ? "" + low :
+		( i == seekBuckets.length - 1 ) ? low + "+" :
+		low + "-" + ( ( 1 << i ) - 1 );
+	    s += " " + range + ":" + seekBuckets[i];
+	}
+	s += "\n";
+
+	long total = lastChange - firstChange;
+	long weighted = 0;
+	for ( int i = 0; i < depthTime.length; i++ )
+	    weighted += i * depthTime[i];
+	s += "queue depth: " + ( total > 0 ? weighted * 100 / total / 100.0 : 0.0 ) +
+	    " avg, " + maxDepth + " max, % of time at depth";
+	for ( int i = 0; i < depthTime.length; i++ )
+	    if ( depthTime[i] > 0 )
+		s += " " + i + ":" + depthTime[i] * 100 / total;
+	s += "\nqueue depth every " + sampleInterval / 1000 + " ms:";
+	for ( int i = Math.max( 0, sampleCount - samples ); i < sampleCount; i++ )
+	    s += " " + depthSamples[ i % samples ];
+	s += "\n";
+
+	return s + heatMap( );
+    }
+
+    // The hottest blocks, then the disk in 50 ranges each shaded by its
+    // share of the accesses to the hottest range
+    private String heatMap( ) {
+	final String shades = " .:-=+*#%@";
+	final int hottest = 8;
+	int top[] = new int[ hottest ];
+	int topCount = 0;
+	for ( int b = 0; b < reads.length; b++ ) {
+	    int accesses = reads[b] + writes[b];
+	    if ( accesses == 0 )
+		continue;
+	    int i = Math.min( topCount, hottest - 1 );
+	    if ( topCount == hottest &&
+		 reads[ top[i] ] + writes[ top[i] ] >= accesses )
+		continue;
+	    while ( i > 0 && reads[ top[i - 1] ] + writes[ top[i - 1] ] < accesses ) {
+		top[i] = top[i - 1];
+		i--;
+	    }
+	    top[i] = b;
+	    topCount = Math.min( topCount + 1, hottest );
+	}
+	String s = "hottest blocks (reads/writes):";
+	for ( int i = 0; i < topCount; i++ )
+	    s += " " + top[i] + "(" + reads[ top[i] ] + "/" + writes[ top[i] ] + ")";
+
+	int ranges = Math.min( 50, reads.length );
+	int per = ( reads.length + ranges - 1 ) / ranges;
+	long heat[] = new long[ ranges ];
+	long max = 0;
+	for ( int b = 0; b < reads.length; b++ ) {
+	    heat[ b / per ] += reads[b] + writes[b];
+	    max = Math.max( max, heat[ b / per ] );
+	}
+	s += "\nheat map (" + per + " blocks per column): [";
+	for ( int i = 0; i < ranges; i++ )
+	    s += shades.charAt( max == 0 || heat[i] == 0 ? 0 :
+				( int )Math.max( 1, heat[i] * ( shades.length( ) - 1 ) / max ) );
+	return s + "]\n";
+    }
+}
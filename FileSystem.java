@@ -11,20 +11,41 @@ public class FileSystem {
     private SuperBlock superblock;
     private Directory directory;
     private FileTable filetable;
+    private InodeCache inodes;
     private final static boolean SUCCESS = true;
     private final static boolean FAILURE = false;
 
+    // Blocks an extent file takes off the free list at once
+    private final static int RESERVE = 16;
+
+    // Readahead window, in blocks
+    private final static int MIN_READAHEAD = 2;
+    private final static int MAX_READAHEAD = 32;
+
     // Start position of seek pointer
     private final int SEEK_SET = 0; // from the beginning of the file
     private final int SEEK_CUR = 1; // from the current position of the file pointer in the file
     private final int SEEK_END = 2; // from the end of the file
 
     public FileSystem(int diskBlocks) {
-        superblock = new SuperBlock(diskBlocks); // Init new SuperBlock with default format 64
+        this(diskBlocks, Inode.INDIRECT);
+    }
+
+    /**
+     * Mounts the file system on the disk, or formats the disk if it holds
+     * none
+     * @param diskBlocks
+     * @param inodeFormat Inode.INDIRECT, Inode.EXTENTS or Inode.BLOCKS,
+     *                    given to the inodes by every format
+     */
+    public FileSystem(int diskBlocks, int inodeFormat) {
+        superblock = new SuperBlock(diskBlocks, inodeFormat); // Init new SuperBlock with default format 64
 
         directory = new Directory(superblock.inodeBlocks); // Root Directory init to '/'
 
-        filetable = new FileTable(directory); // Init FileTable and put directory to it
+        inodes = new InodeCache(superblock.inodeFormat); // Inodes shared by all file table entries
+
+        filetable = new FileTable(directory, inodes); // Init FileTable and put directory to it
 
         FileTableEntry dirEnt = open("/", "r"); // Reconstruct the fileTableEntry
         int dirSize = fsize(dirEnt);
@@ -50,7 +71,46 @@ public class FileSystem {
         //close root directory
         close(openRoot);
 
+        //write back the dirty inodes
+        inodes.sync();
+
         //sync superblock
+        storeSuperblock();
+    }
+
+    /**
+     * Write the inode of the file, with its index or extent blocks, and
+     * the superblock into the cache, for the caller to write the cache
+     * back.  Its data blocks are there already.  The inode is stored
+     * under its own lock, which no writer holds across the call.
+     * @param ftEnt
+     * @return 0 on success, -1 on error
+     */
+    int fsync(FileTableEntry ftEnt) {
+        if (ftEnt == null)
+            return -1;
+        inodes.flush(ftEnt.iNumber);
+        storeSuperblock();
+        return 0;
+    }
+
+    /**
+     * Write back the inodes dirty for more than age msec, and the
+     * superblock with them so that their blocks are not free on disk.
+     * Never while a format rewrites the inodes.
+     * @param age
+     */
+    public synchronized void flushInodes(long age) {
+        if (inodes.flushExpired(age) > 0)
+            storeSuperblock();
+    }
+
+    /**
+     * Write the superblock into the cache.  The blocks files hold
+     * reserved are given back first: no inode on disk records them.
+     */
+    private void storeSuperblock() {
+        inodes.unreserve(superblock);
         superblock.sync();
     }
 
@@ -59,19 +119,22 @@ public class FileSystem {
      * @param files
      * @return
      */
-    public boolean format(int files) {
+    public synchronized boolean format(int files) {
         superblock.format(files); // Call format in the superBlock with
 
         directory = new Directory(superblock.inodeBlocks); // Create root directory
 
-        filetable = new FileTable(directory); // Store directory in fileTAble
+        inodes.clear(superblock.inodeFormat); // The formatted inodes replace the cached ones
+
+        filetable = new FileTable(directory, inodes); // Store directory in fileTAble
 
         return true; // Format will always be successful
     }
 
     /**
      * Open the file by Name by specified mode
-     * If it's the write mode method will call deallocaateAllBlocks
+     * If it's the write mode method will call rewrite, which empties the
+     * file but keeps its blocks for the new data
      * @param filename
      * @param mode
      * @return
@@ -79,8 +142,10 @@ public class FileSystem {
     FileTableEntry open(String filename, String mode) {
         FileTableEntry newEntry = filetable.falloc(filename, mode);
         if (mode == "w") {
-            if (!deallocAllBlocks(newEntry))
-                return null; // deallocate all blocks
+            synchronized (newEntry.inode) {
+                if (!rewrite(newEntry))
+                    return null; // empty the file
+            }
         }
         return newEntry;     // return new file table entry
     }
@@ -93,14 +158,27 @@ public class FileSystem {
      * @return
      */
     public boolean close(FileTableEntry ftEnt) {
-        synchronized (ftEnt) { // Lock
+        Inode inode = ftEnt.inode;
+        synchronized (inode) { // Lock
             ftEnt.count--; // decrement user count
-            if (ftEnt.count == 0) {
-                return filetable.ffree(ftEnt); // free file entry
-
+            if (ftEnt.count != 0)
+                return true;
+            if (inode.count == 1 && inode.keptLength > inode.length)
+                cut(ftEnt, inode.length); // last close after a rewrite
+        }
+        boolean freed = filetable.ffree(ftEnt); // free file entry
+        boolean last;
+        synchronized (inode) {
+            last = inode.count == 0;
+            if (last && inode.reserved > 0) {
+                // last close, give back the blocks it did not use
+                superblock.returnRun(inode.reserveNext, inode.reserved);
+                inode.reserved = 0;
             }
-            return true;
         }
+        if (last)
+            inodes.flush(ftEnt.iNumber); // last close, not holding the inode
+        return freed;
     }
 
     /**
@@ -109,7 +187,7 @@ public class FileSystem {
      * @return
      */
     int fsize(FileTableEntry ftEnt) {
-        synchronized (ftEnt) {
+        synchronized (ftEnt.inode) {
             Inode tempInode = ftEnt.inode;
             return tempInode.length;
         }
@@ -117,6 +195,9 @@ public class FileSystem {
 
     /**
      * Read a file from the file table entry
+     * A tiny file is read from its inode.  Otherwise all the blocks the read
+     * spans are fetched with one vectored cache read, and the blocks after
+     * them are read ahead if the entry is read sequentially
      * @param ftEnt
      * @param buffer
      * @return
@@ -131,15 +212,45 @@ public class FileSystem {
         int blockSize = 512;
         int iterationSize = 0;                  // how much more to read
 
-        synchronized (ftEnt) {
-            while ((ftEnt.seekPtr < fsize(ftEnt) && (size > 0))) { // Loop thru data
-                int target = ftEnt.inode.findTargetBlock(ftEnt.seekPtr);
-                if (target == readError) { // check if valid
-                    break;
+        synchronized (ftEnt.inode) {
+            int end = Math.min(ftEnt.seekPtr + size, fsize(ftEnt)); // last byte + 1
+            if (ftEnt.seekPtr >= end)
+                return 0;
+
+            if (ftEnt.inode.inline) { // data kept in the inode
+                readBuffer = end - ftEnt.seekPtr;
+                ftEnt.inode.readInline(ftEnt.seekPtr, buffer, 0, readBuffer);
+                ftEnt.seekPtr = end;
+                ftEnt.nextRead = end;
+                return readBuffer;
+            }
+
+            int first = ftEnt.seekPtr / blockSize;     // first block to read
+            int count = (end - 1) / blockSize - first + 1;
+            int[] targets = new int[count];
+            int mapped = 0;                            // blocks not in holes
+            for (int i = 0; i < count; i++) {          // map the whole run
+                targets[i] = ftEnt.inode.findTargetBlock((first + i) * blockSize);
+                if (targets[i] != readError)
+                    mapped++;
+            }
+            byte[][] data = new byte[count][blockSize]; // read blocks of data
+            if (mapped == count)
+                SysLib.creadv(targets, data);
+            else if (mapped > 0) { // a hole reads as the zeros data starts with
+                int[] valid = new int[mapped];
+                byte[][] validData = new byte[mapped][];
+                for (int i = 0, n = 0; i < count; i++) {
+                    if (targets[i] != readError) {
+                        valid[n] = targets[i];
+                        validData[n++] = data[i];
+                    }
                 }
-                byte[] data = new byte[blockSize]; // read blocks of data
-                SysLib.rawread(target, data);
+                SysLib.creadv(valid, validData);
+            }
+            readahead(ftEnt, ftEnt.seekPtr, first + count);
 
+            for (int i = 0; i < count && size > 0; i++) { // Loop thru data
                 int dataOffset = ftEnt.seekPtr % blockSize; // pointer to read
                 int blockLeft = blockSize - dataOffset; // how much left
                 int fileLeft = fsize(ftEnt) - ftEnt.seekPtr; // how much file is left
@@ -152,19 +263,84 @@ public class FileSystem {
                 if (iterationSize > size)
                     iterationSize = size;
 
-                System.arraycopy(data, dataOffset, buffer, readBuffer,
+                System.arraycopy(data[i], dataOffset, buffer, readBuffer,
                         iterationSize); // copy file read to buffer
 
                 ftEnt.seekPtr += iterationSize; // update variable
                 readBuffer += iterationSize;
                 size -= iterationSize;
             }
+            ftEnt.nextRead = ftEnt.seekPtr;
             return readBuffer;
         }
     }
 
+    /**
+     * Sequential readahead.  A read starting where the last read of the
+     * entry ended opens the window at MIN_READAHEAD blocks or doubles it,
+     * up to MAX_READAHEAD; any other read closes it.  The blocks of the
+     * window not requested yet are handed to the cache to be read in the
+     * background.  The cache takes only what its readahead budget allows,
+     * so the window ends after the blocks it took and shrinks to them.
+     * @param ftEnt
+     * @param start offset the read starts at
+     * @param next file block after the last one read
+     */
+    private void readahead(FileTableEntry ftEnt, int start, int next) {
+        int blockSize = 512;
+
+        if (start != ftEnt.nextRead) { // random access
+            ftEnt.readahead = 0;
+            ftEnt.readaheadEnd = 0;
+            return;
+        }
+        if (ftEnt.readahead == 0)
+            ftEnt.readahead = MIN_READAHEAD;
+        else
+            ftEnt.readahead = Math.min(ftEnt.readahead * 2, MAX_READAHEAD);
+
+        int from = Math.max(next, ftEnt.readaheadEnd);
+        int to = Math.min(next + ftEnt.readahead,
+                (fsize(ftEnt) + blockSize - 1) / blockSize);
+        if (from >= to)
+            return;
+        int[] ahead = new int[to - from];
+        int[] fileBlocks = new int[to - from]; // file block of each in ahead
+        int count = 0;
+        for (int b = from; b < to; b++) { // holes have nothing to read
+            int block = ftEnt.inode.findTargetBlock(b * blockSize);
+            if (block != -1) {
+                fileBlocks[count] = b;
+                ahead[count++] = block;
+            }
+        }
+        if (count == 0) {
+            ftEnt.readaheadEnd = to;
+            return;
+        }
+        if (count < ahead.length) {
+            int[] valid = new int[count];
+            System.arraycopy(ahead, 0, valid, 0, count);
+            ahead = valid;
+        }
+        int queued = SysLib.cprefetch(ahead);
+        if (queued == Kernel.ERROR)
+            return;                  // ask again next read
+        if (queued == count) {
+            ftEnt.readaheadEnd = to;
+            return;
+        }
+        ftEnt.readaheadEnd = fileBlocks[queued]; // the first not taken
+        ftEnt.readahead = Math.max(ftEnt.readaheadEnd - next, MIN_READAHEAD);
+    }
+
     /**
      * Write to a file
+     * A tiny file is written in its inode until it grows past
+     * Inode.inlineBytes, when its data moves to a block.  Blocks are
+     * allocated first, then the run is patched and written back with one
+     * vectored write.  Only old blocks the write covers in part are read
+     * first, with one vectored read.
      * @param ftEnt
      * @param buffer
      * @return
@@ -178,41 +354,83 @@ public class FileSystem {
             return -1;
         }
 
-        synchronized (ftEnt) {
-            while (bufferSize > 0) {
-                int loc = ftEnt.inode.findTargetBlock(ftEnt.seekPtr); // location of block
-
-                if (loc == -1) { // if block is full
-                    short newLoc = (short) superblock.getFreeBlock(); // new free block to write to
-
-                    int testPtr = ftEnt.inode.getIndexBlockNumber(ftEnt.seekPtr, newLoc); // index block and test pointer
-
-                    if(testPtr == -3){ // if null pointer
-                        short freeBlock = (short)this.superblock.getFreeBlock();
+        synchronized (ftEnt.inode) {
+            if (bufferSize == 0)
+                return 0;
+
+            int end = ftEnt.seekPtr + bufferSize;     // last byte written + 1
+            Inode inode = ftEnt.inode;
+            if (ftEnt.seekPtr > inode.length && inode.keptLength > inode.length)
+                cut(ftEnt, inode.length); // the hole must not show old data
+            if (ftEnt.inode.inline) {
+                if (end <= Inode.inlineBytes) { // still fits in the inode
+                    ftEnt.inode.writeInline(ftEnt.seekPtr, buffer, 0, bufferSize);
+                    ftEnt.seekPtr = end;
+                    if (end > ftEnt.inode.length)
+                        ftEnt.inode.length = end;
+                    ftEnt.inode.markDirty();
+                    return bufferSize;
+                }
+                if (!spill(ftEnt))
+                    return -1;
+            }
 
-                        if (!ftEnt.inode.setIndexBlock(freeBlock)) { // indirect pointer is -1
-                            return -1;
-                        }
+            int first = ftEnt.seekPtr / blockSize;  // first block written
+            int count = (ftEnt.seekPtr + bufferSize - 1) / blockSize - first + 1;
+            int[] targets = new int[count];
+            boolean[] fresh = new boolean[count];   // allocated by this write
+            for (int i = 0; i < count; i++) {
+                int position = (first + i) * blockSize;
+                int loc = ftEnt.inode.findTargetBlock(position); // location of block
 
-                        if (ftEnt.inode.getIndexBlockNumber(ftEnt.seekPtr, newLoc) != 0) { // error on block pointer
-                            return -1;
-                        }
-                    } else if (testPtr == -2 || testPtr == -1){
+                if (loc == -1) { // if block is full
+                    loc = mapNewBlock(ftEnt, position); // new free block to write to
+                    if (loc == -1)
                         return -1;
-                    }
-                    loc = newLoc;
+                    fresh[i] = true;
+                }
+                targets[i] = loc;
+            }
+
+            // Only old blocks written in part are read first; a new block
+            // starts zeroed and a whole block is simply overwritten.  Past
+            // the end of a rewritten file its kept blocks hold old data,
+            // which is dropped the same way.
+            int stale = (inode.keptLength > inode.length) ? inode.length
+                                                          : Integer.MAX_VALUE;
+            byte[][] tempBuffers = new byte[count][blockSize]; // new byte arrays
+            int[] partial = new int[count];
+            int partials = 0;
+            for (int i = 0; i < count; i++) {
+                int from = Math.max(ftEnt.seekPtr, (first + i) * blockSize);
+                int to = Math.min(end, (first + i + 1) * blockSize);
+                if ((first + i) * blockSize >= stale)
+                    fresh[i] = true;
+                if (!fresh[i] && to - from < blockSize)
+                    partial[partials++] = i;
+            }
+            if (partials > 0) {
+                int[] readTargets = new int[partials];
+                byte[][] readBuffers = new byte[partials][];
+                for (int i = 0; i < partials; i++) {
+                    readTargets[i] = targets[partial[i]];
+                    readBuffers[i] = tempBuffers[partial[i]];
                 }
-                
-                byte[] tempBuffer = new byte[blockSize];    // new byte array
-                SysLib.rawread(loc, tempBuffer);            // read block to array
+                SysLib.creadv(readTargets, readBuffers);  // read blocks to arrays
+                if (stale < end) {                        // block the end lies in
+                    int s = stale / blockSize - first;
+                    for (int i = stale % blockSize; i < blockSize; i++)
+                        tempBuffers[s][i] = 0;
+                }
+            }
 
+            for (int i = 0; i < count; i++) {
                 int tempPtr = ftEnt.seekPtr % blockSize;    // loop thru file
                 int diff = blockSize - tempPtr;             // size difference
 
                 // append to end
                 if (diff > bufferSize) {
-                  System.arraycopy(buffer, bytesWritten, tempBuffer, tempPtr, bufferSize);
-                  SysLib.rawwrite(loc, tempBuffer);         // write block to memory
+                  System.arraycopy(buffer, bytesWritten, tempBuffers[i], tempPtr, bufferSize);
 
                   ftEnt.seekPtr += bufferSize;              // increment seek pointer
                   bytesWritten += bufferSize;               // increment bytes written
@@ -220,55 +438,267 @@ public class FileSystem {
 
                 // copy remaining
                 } else {                                   
-                   System.arraycopy(buffer, bytesWritten, tempBuffer, tempPtr, diff);
-                   SysLib.rawwrite(loc, tempBuffer);        // write block to array
+                   System.arraycopy(buffer, bytesWritten, tempBuffers[i], tempPtr, diff);
 
                    ftEnt.seekPtr += diff;                   // increment seek pointer
                    bytesWritten += diff;                    // increment bytes written
                    bufferSize -= diff;                      // decrement remaining buffer size
                 }
-
             }
+            SysLib.cwritev(targets, tempBuffers);         // write blocks to cache
+
             if (ftEnt.seekPtr > ftEnt.inode.length) { // increment inode length
                 ftEnt.inode.length = ftEnt.seekPtr;
             }
+            if (inode.length >= inode.keptLength)     // no old data left past it
+                inode.keptLength = 0;
 
-            ftEnt.inode.toDisk(ftEnt.iNumber);              // Save inode to disk
+            ftEnt.inode.markDirty();                // Save inode lazily
             return bytesWritten;
         }
     }
 
     /**
-     * Free up all the blocks
+     * Preallocate the blocks of bytes offset .. offset + len - 1 that are
+     * not mapped yet, all taken off the free list in one call so that they
+     * come as one run as far as the free list allows.  The new blocks read
+     * as zeros, and the file grows to offset + len if it is shorter.  A
+     * later write over the range allocates nothing.
      * @param ftEnt
-     * @return
+     * @param offset
+     * @param len
+     * @return 0 on success, -1 on error
      */
-    private boolean deallocAllBlocks(FileTableEntry ftEnt) {
-        short notValid = -1; // can't read
-        // inode is null
-        if (ftEnt.inode.count != 1) {
-            SysLib.cerr("Null pointer - could not deallocAllBlocks.\n");
-            return false;
+    int fallocate(FileTableEntry ftEnt, int offset, int len) {
+        int blockSize = 512;
+
+        if (ftEnt == null || ftEnt.mode == "r" || offset < 0 || len <= 0)
+            return -1;
+
+        synchronized (ftEnt.inode) {
+            Inode inode = ftEnt.inode;
+            int end = offset + len;
+            if (end > inode.length && inode.keptLength > inode.length)
+                cut(ftEnt, inode.length); // old data must not show
+            if (inode.inline && end > Inode.inlineBytes && !spill(ftEnt))
+                return -1;
+
+            if (!inode.inline) {
+                int first = offset / blockSize;
+                int last = (end - 1) / blockSize;
+                int[] holes = new int[last - first + 1];
+                int count = 0;
+                for (int b = first; b <= last; b++)
+                    if (inode.findTargetBlock(b * blockSize) == -1)
+                        holes[count++] = b;
+
+                if (count > 0) {
+                    if (inode.reserved > 0) { // so the run starts with them
+                        superblock.returnRun(inode.reserveNext, inode.reserved);
+                        inode.reserved = 0;
+                    }
+                    int[] blocks = superblock.getFreeBlocks(count);
+                    int mapped = 0;
+                    while (mapped < blocks.length
+                            && mapBlock(ftEnt, holes[mapped] * blockSize,
+                                    (short) blocks[mapped]))
+                        mapped++;
+                    int[] unused = new int[blocks.length - mapped];
+                    System.arraycopy(blocks, mapped, unused, 0, unused.length);
+                    superblock.returnBlocks(unused);
+
+                    // free blocks hold the free list, so they are cleared
+                    int[] targets = new int[mapped];
+                    System.arraycopy(blocks, 0, targets, 0, mapped);
+                    SysLib.cwritev(targets, new byte[mapped][blockSize]);
+                    if (mapped < count) {
+                        ftEnt.inode.markDirty();
+                        return -1;
+                    }
+                }
+            }
+
+            if (end > inode.length)
+                inode.length = end;
+            ftEnt.inode.markDirty();
+            return 0;
+        }
+    }
+
+    /**
+     * Allocates a block for the file block holding position and maps it,
+     * with the index blocks missing on the way
+     * @param ftEnt
+     * @param position
+     * @return the block, -1 on error
+     */
+    private int mapNewBlock(FileTableEntry ftEnt, int position) {
+        short newLoc = (short) allocate(ftEnt.inode); // new free block to write to
+        if (newLoc == -1)
+            return -1;
+        if (!mapBlock(ftEnt, position, newLoc)) {
+            superblock.returnBlock(newLoc);
+            return -1;
         }
+        return newLoc;
+    }
+
+    /**
+     * Maps the file block holding position to newLoc, allocating the index
+     * blocks missing on the way
+     * @param ftEnt
+     * @param position
+     * @param newLoc
+     * @return false if the file block can not be mapped
+     */
+    private boolean mapBlock(FileTableEntry ftEnt, int position, short newLoc) {
+        int testPtr = ftEnt.inode.getIndexBlockNumber(position, newLoc); // index block and test pointer
 
-        // direct pointer blocks
-        for (short blockId = 0; blockId < ftEnt.inode.directSize; blockId++) {
-            if (ftEnt.inode.direct[blockId] != notValid) {
-                superblock.returnBlock(blockId);
-                ftEnt.inode.direct[blockId] = notValid;
+        while(testPtr == -3){ // if null pointer, once per missing index level
+            short freeBlock = (short)this.superblock.getFreeBlock();
+            if (freeBlock == -1)
+                return false;
+
+            if (!ftEnt.inode.setIndexBlock(position, freeBlock)) { // indirect pointer is -1
+                superblock.returnBlock(freeBlock);
+                return false;
             }
+
+            testPtr = ftEnt.inode.getIndexBlockNumber(position, newLoc);
         }
+        return testPtr == 0; // else error on block pointer
+    }
 
-        // indirect ptr
-        byte[] data = ftEnt.inode.freeIndirectBlock();
-        // direct pointer if != null
-        if (data != null) {
-            short blockId;
-            while ((blockId = SysLib.bytes2short(data, 0)) != notValid) {
-                superblock.returnBlock(blockId);
+    /**
+     * Moves the data of a tiny file out of its inode into a block, as the
+     * file grows past what the inode holds
+     * @param ftEnt
+     * @return false if no block could be mapped
+     */
+    private boolean spill(FileTableEntry ftEnt) {
+        byte[] block = new byte[Disk.blockSize];
+        if (!ftEnt.inode.takeInline(block))
+            return true; // empty, nothing to move
+        int loc = mapNewBlock(ftEnt, 0);
+        if (loc == -1)
+            return false;
+        SysLib.cwrite(loc, block);
+        return true;
+    }
+
+    /**
+     * A free block for the file of inode.  An extent inode takes up to
+     * RESERVE blocks that follow each other off the head of the free list
+     * at once and uses them in order, so that its extents stay long even
+     * when files are written a block at a time side by side.
+     * @param inode
+     * @return -1 if the disk is full
+     */
+    private int allocate(Inode inode) {
+        if (inode.format != Inode.EXTENTS)
+            return superblock.getFreeBlock();
+
+        if (inode.reserved == 0) {
+            int first = superblock.getFreeBlock();
+            if (first == -1)
+                return -1;
+            inode.reserveNext = first;
+            inode.reserved = 1 + superblock.takeRun(first, RESERVE - 1);
+        }
+        inode.reserved--;
+        return inode.reserveNext++;
+    }
+
+    /**
+     * Truncate the file to length bytes.  The blocks past the new end are
+     * given back and the rest of the last block is cleared, so a file cut
+     * and grown again reads as zeros there.  A file made longer gets a
+     * hole.
+     * @param ftEnt
+     * @param length
+     * @return 0 on success, -1 on error
+     */
+    int truncate(FileTableEntry ftEnt, int length) {
+        if (ftEnt == null || ftEnt.mode == "r" || length < 0)
+            return -1;
+
+        synchronized (ftEnt.inode) {
+            Inode inode = ftEnt.inode;
+            if (length > inode.maxLength())
+                return -1;
+            if (length < inode.length || inode.keptLength > inode.length)
+                cut(ftEnt, Math.min(length, inode.length));
+            if (inode.inline && length > Inode.inlineBytes && !spill(ftEnt))
+                return -1;
+            inode.length = length;
+            ftEnt.inode.markDirty();
+            return 0;
+        }
+    }
+
+    /**
+     * Cuts the file at length, no more than its length: gives back every
+     * block past it, kept ones included, and clears the rest of the last
+     * block.  In the INDIRECT and EXTENTS formats a file cut to
+     * Inode.inlineBytes or less moves back into its inode.
+     * @param ftEnt
+     * @param length
+     */
+    private void cut(FileTableEntry ftEnt, int length) {
+        Inode inode = ftEnt.inode;
+        int blockSize = 512;
+        inode.keptLength = 0;
+
+        if (inode.inline) { // clear the rest of the inline data
+            byte[] zeros = new byte[Inode.inlineBytes - length];
+            inode.writeInline(length, zeros, 0, zeros.length);
+        }
+        else if (inode.format != Inode.BLOCKS && length <= Inode.inlineBytes) {
+            byte[] block = new byte[blockSize];
+            int loc = inode.findTargetBlock(0);
+            if (loc != -1 && length > 0)
+                SysLib.cread(loc, block);
+            inode.length = length;
+            superblock.returnBlocks(inode.freeBlocks()); // now inline
+            inode.writeInline(0, block, 0, length);
+        }
+        else {
+            superblock.returnBlocks(
+                    inode.freeBlocks((length + blockSize - 1) / blockSize));
+            int loc = inode.findTargetBlock(length);
+            if (length % blockSize != 0 && loc != -1) {
+                byte[] block = new byte[blockSize];
+                SysLib.cread(loc, block);
+                for (int i = length % blockSize; i < blockSize; i++)
+                    block[i] = 0;
+                SysLib.cwrite(loc, block);
             }
         }
-        ftEnt.inode.toDisk(ftEnt.iNumber);// write back inodes to disk
+        inode.length = length;
+        ftEnt.inode.markDirty();
+    }
+
+    /**
+     * Empties the file for the "w" mode.  Its blocks stay mapped, so that
+     * rewriting it allocates nothing where it already had blocks, and the
+     * last close gives back only those past where the rewrite ended.  A
+     * tiny file is simply cleared.
+     * @param ftEnt
+     * @return false if others have the file open
+     */
+    private boolean rewrite(FileTableEntry ftEnt) {
+        Inode inode = ftEnt.inode;
+        if (inode.count != 1) {
+            SysLib.cerr("File in use - could not rewrite it.\n");
+            return false;
+        }
+
+        if (inode.inline)
+            cut(ftEnt, 0);
+        else
+            inode.keptLength = Math.max(inode.keptLength, inode.length);
+        inode.length = 0;
+        ftEnt.inode.markDirty(); // write back inode lazily
         return true;
     }
 
@@ -295,7 +725,7 @@ public class FileSystem {
      * @return
      */
     int seek(FileTableEntry ftEnt, int offset, int whence) {
-        synchronized (ftEnt) {
+        synchronized (ftEnt.inode) {
             switch (whence) {
                 // beginning of the file
                 case SEEK_SET:
@@ -329,10 +759,8 @@ public class FileSystem {
                 ftEnt.seekPtr = 0;
             }
 
-            // End of the file
-            if (ftEnt.seekPtr > ftEnt.inode.length) {
-                ftEnt.seekPtr = ftEnt.inode.length;
-            }
+            // Past the end of the file is allowed: a write there leaves a
+            // hole, which reads as zeros and takes no blocks
 
             // Success
             return ftEnt.seekPtr;
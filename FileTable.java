@@ -12,6 +12,7 @@ import java.util.Vector;
 public class FileTable {
     private Vector<FileTableEntry> table;   // file table vector
     private Directory dir;                  // the root
+    private InodeCache inodes;              // shared in-memory inodes
     public final static int UNUSED = 0;     // file does not exist
     public final static int USED = 1;       // file exists but is not R or W by anyone
     public final static int READ = 2;       // file is read by someone
@@ -20,12 +21,15 @@ public class FileTable {
     /**
      * Constructor
      * @param directory
+     * @param icache
      */
-    public FileTable(Directory directory) { 
+    public FileTable(Directory directory, InodeCache icache) { 
         // init a filetable
         table = new Vector<FileTableEntry>(); 
         // reference directory from fileSystem
         dir = directory;           
+        // entries share the inodes of this cache
+        inodes = icache;
     }
 
     /**
@@ -43,7 +47,7 @@ public class FileTable {
 
             // if number exits
             if (iNumber >= 0) {
-                inode = new Inode(iNumber);
+                inode = inodes.get(iNumber);
 
                 // reading mode
                 if (mode.equals("r")) {
@@ -54,7 +58,9 @@ public class FileTable {
                         || inode.flag == UNUSED) {
 
                         // change flag to read
-                        inode.flag = READ;
+                        synchronized (inode) {
+                            inode.flag = READ;
+                        }
                         break;
                     
                     // Wait the writer to finish
@@ -69,7 +75,9 @@ public class FileTable {
                     
                     // Change to write
                     if (inode.flag == USED || inode.flag == UNUSED) {
-                        inode.flag = WRITE;
+                        synchronized (inode) {
+                            inode.flag = WRITE;
+                        }
                         break;
                     
                     // wait till reader or writer to finish
@@ -83,8 +91,10 @@ public class FileTable {
             // file does not exits
             } else if (!mode.equals("r")) {
                 iNumber = dir.ialloc(filename);
-                inode = new Inode(iNumber);
-                inode.flag = WRITE;
+                inode = inodes.get(iNumber);
+                synchronized (inode) {
+                    inode.flag = WRITE;
+                }
                 break;
 
             } else {
@@ -92,8 +102,11 @@ public class FileTable {
             }
         }
 
-        inode.count++;  // increment user count
-        inode.toDisk(iNumber);
+        synchronized (inode) {
+            inode.count++;  // increment user count
+            inode.markDirty();
+        }
+        inodes.hold(iNumber);
         // new fte and add to file table
         FileTableEntry entry = new FileTableEntry(inode, iNumber, mode);
         table.addElement(entry);
@@ -106,25 +119,28 @@ public class FileTable {
      * @return
      */
     public synchronized boolean ffree(FileTableEntry entry) {
-        Inode inode = new Inode(entry.iNumber);
+        Inode inode = entry.inode;
         // check if in table
         if (table.remove(entry)) {
-            if (inode.flag == READ) {
-                // set the flag to used
-                if (inode.count == 1) {
-                    notify();
+            synchronized (inode) { // the inode may be written back meanwhile
+                if (inode.flag == READ) {
+                    // set the flag to used
+                    if (inode.count == 1) {
+                        notify();
+                        inode.flag = USED;
+                    }
+
+                } else if (inode.flag == WRITE) {
+                    // set the flag to used
                     inode.flag = USED;
+                    // wake up all threads
+                    notifyAll();
                 }
-
-            } else if (inode.flag == WRITE) {
-                // set the flag to used
-                inode.flag = USED;
-                // wake up all threads
-                notifyAll();
+                    // Decrement the number of users
+                inode.count--;
+                inode.markDirty();
             }
-                // Decrement the number of users
-            inode.count--;
-            inode.toDisk(entry.iNumber);
+            inodes.release(entry.iNumber);
             return true;
         }
         return false;
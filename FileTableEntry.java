@@ -13,6 +13,11 @@ public class FileTableEntry {
    public final short iNumber;         // inode number
    public int count;
    public final String mode;           // "r", "w", "w+", or "a"
+
+   // sequential readahead
+   public int nextRead;                // offset a sequential read starts at
+   public int readahead;               // window in blocks, 0 if not sequential
+   public int readaheadEnd;            // block after the last one read ahead
    
    public FileTableEntry ( Inode i, short inumber, String m ) {
       seekPtr = 0;             // top of the file
@@ -20,6 +25,9 @@ public class FileTableEntry {
       iNumber = inumber;
       count = 1;               // using this entry
       mode = m;                // never change
+      nextRead = 0;            // a read from the top is sequential
+      readahead = 0;
+      readaheadEnd = 0;
       if ( mode.compareTo( "a" ) == 0 ) // append
          seekPtr = inode.length;        // seekPtr points to the end of file
    }
@@ -1,3 +1,6 @@
+import java.util.Arrays;
+import java.util.Vector;
+
 /**
  * 
  * Inode.java
@@ -11,12 +14,79 @@ public class Inode {
    private final static int iNodeSize = 32;       // inode byte size in disk
    public final static int directSize = 11;      // # direct pointers
    private final static int maxBytes = 512;
+   private final static int ptrsPerBlock = maxBytes / 2; // of an index block
+
+   // On-disk formats of the 24 bytes after flag, chosen at format time
+   public final static int BLOCKS = 0;            // 11 direct, an indirect pointer
+   public final static int EXTENTS = 1;           // runs of contiguous blocks
+   public final static int INDIRECT = 2;          // 9 direct, 3 indirect levels
+   private final static int indirectDirects = 9;  // # direct pointers of INDIRECT
+   public final static int inlineBytes = 24;      // data an inode holds itself
+   public final static int inlineExtents = 3;     // # extents in the inode
+   private final static int extentBytes = 6;      // file block, start, length
+   private final static int blockExtents = maxBytes / extentBytes;
 
    public int length;                             // file size in bytes
    public short count;                            // # file-table entries pointing to this
    public short flag;                             // 0 = unused, 1 = used, ...
    public short direct[] = new short[directSize]; // direct pointers
    public short indirect;                         // a indirect pointer
+   public short doubleIndirect = -1;              // INDIRECT format only
+   public short tripleIndirect = -1;              // INDIRECT format only
+
+   public final int format;                       // BLOCKS, EXTENTS or INDIRECT
+   private final int directs;                     // # direct pointers used
+
+   // Index blocks, decoded on first use into a tree that follows the
+   // pointers, so that lookups past the first stay in memory.  Changed
+   // ones are written back with the inode.
+   private static class Index {
+      public short block;                         // where it is stored
+      public short map[] = new short[ptrsPerBlock];
+      public Index child[] = null;                // decoded blocks it points to
+      public boolean dirty = false;
+   }
+   private Index roots[] = new Index[4];          // of each indirect level
+
+   // INDIRECT and EXTENTS formats: a file of up to inlineBytes keeps its
+   // data where the pointers would be, and maps no block.  It moves to a
+   // block once it grows past that.
+   public boolean inline = false;
+   private byte inlineData[] = new byte[inlineBytes];
+
+   // EXTENTS format: the file as runs of contiguous disk blocks, ordered
+   // by file block.  Extent i maps file blocks extentFile[i] and on to
+   // extentLength[i] disk blocks from extentStart[i].  The first
+   // inlineExtents are kept in the inode, the rest blockExtents to a block
+   // in a chain of extent blocks from extentBlock, each ending with the
+   // number of the next, -1 or 0 after the last.  The chain is read on
+   // first use and written back with the inode when changed.
+   public short extentBlock = -1;                 // block of further extents
+   private short extentBlocks[] = new short[0];   // the chain, once read
+   private short extentFile[] = new short[inlineExtents + blockExtents];
+   private short extentStart[] = new short[inlineExtents + blockExtents];
+   private short extentLength[] = new short[inlineExtents + blockExtents];
+   private int extents = 0;                       // # extents known
+   private boolean extentsLoaded = true;          // the chain read, if any
+   private boolean extentsDirty = false;          // the chain changed
+
+   // EXTENTS format: a run of blocks taken off the free list for the
+   // file to grow into, so that it stays contiguous while other files
+   // are written too.  In memory only; given back on the last close and
+   // before the superblock is stored, so that a crash never loses it.
+   public int reserveNext = -1;                   // next reserved block
+   public int reserved = 0;                       // # reserved from there
+
+   // A rewrite empties the file but keeps its blocks mapped, up to the
+   // length they were mapped for, until the last close gives back those
+   // past the new length.  Until then that length stays on disk too.
+   public int keptLength = 0;
+
+   // Changed in memory since last stored, and since when in msec.  The
+   // inode's monitor guards these as every other field: whoever changes
+   // the inode or stores it holds the monitor meanwhile.
+   public boolean dirty = false;
+   public long dirtiedAt = 0;
 
    
    
@@ -25,10 +95,13 @@ public class Inode {
    /**
     * 
     * Sets inode length and count to 0, sets flag to 1 (used), sets all
-    * pointers to -1
+    * pointers to -1.  Stored, such an inode reads back empty in either
+    * format.
     * 
     */
    Inode( ) {
+      format = BLOCKS;
+      directs = directSize;
       length = 0;
       count = 0;
       flag = 1;
@@ -40,7 +113,7 @@ public class Inode {
    
    
    // -------------------------------------------------------------------------
-   // Inode(short iNumber)			constructor
+   // Inode(short iNumber, int format)		constructor
    /**
     * 
     * Read a byte array from the disk which represents the inode.
@@ -56,14 +129,30 @@ public class Inode {
     * 		The next 11 2-byte chunks store direct pointers to files in disk
     * 		The next 2-byte chunk stores pointer to indirect block
     * 
+    * In the INDIRECT format the pointers are 9 direct ones, then the
+    * single, double and triple indirect ones.
+    * 
+    * In the EXTENTS format the pointers are replaced by:
+    * 		3 6-byte chunks storing extents as file block, start block and
+    * 		length, unused ones all -1
+    * 		The next 2-byte chunk stores pointer to the first extent block
+    * 		The last 4 bytes are unused
+    * 
+    * In either, a file of up to 24 bytes stores its data in place of the
+    * pointers.
+    * 
     * 
     * @param iNumber							// index of the inode in disk
+    * @param format							// BLOCKS, EXTENTS or INDIRECT
     */
-   Inode( short iNumber ) {
+   Inode( short iNumber, int format ) {
+      this.format = format;
+      directs = (format == INDIRECT) ? indirectDirects : directSize;
+
       // figure out index of disk block storing inode
       int blkContainingInode = 1 + iNumber / 16; // 1 block stores 16 inodes
       byte[] data = new byte[maxBytes];
-      SysLib.rawread(blkContainingInode,data);
+      SysLib.cread(blkContainingInode,data);
 
       // Index in block where this inode begins
       int offset = (iNumber % 16) * iNodeSize;
@@ -76,15 +165,63 @@ public class Inode {
       flag = SysLib.bytes2short(data,offset);
       offset +=2;
 
+      // Tiny files keep their data in place of the pointers
+      inline = fitsInline();
+      if (inline) {
+         for (int i = 0; i < directSize; i++)
+            direct[i] = -1;
+         indirect = -1;
+         // past length it is zero, whatever the area held before
+         System.arraycopy(data, offset, inlineData, 0, length);
+         return;
+      }
+
       // Allocate space for pointers
-      for (int i = 0; i < directSize; i++) {
+      if (format == EXTENTS) {
+         for (int i = 0; i < directSize; i++)
+            direct[i] = -1;
+         indirect = -1;
+         for (int i = 0; i < inlineExtents; i++) {
+            if (SysLib.bytes2short(data,offset) >= 0)
+               readExtent(data, offset);
+            offset += extentBytes;
+         }
+         extentBlock = SysLib.bytes2short(data,offset);
+         extentsLoaded = extentBlock < 0;
+         return;
+      }
+      for (int i = 0; i < directSize; i++)
+         direct[i] = -1;
+      for (int i = 0; i < directs; i++) {
          direct[i] = SysLib.bytes2short(data,offset);
          offset +=2;
       }
       indirect = SysLib.bytes2short(data,offset);
       offset +=2;
+      if (format == INDIRECT) {
+         doubleIndirect = SysLib.bytes2short(data,offset);
+         offset +=2;
+         tripleIndirect = SysLib.bytes2short(data,offset);
+         offset +=2;
+      }
    }
 
+   // -------------------------------------------------------------------------
+   // markDirty()
+   /**
+    * 
+    * The inode changed and has to reach the disk
+    * 
+    */
+   synchronized void markDirty( ) {
+      if ( !dirty ) {
+         dirty = true;
+         dirtiedAt = System.currentTimeMillis( );
+      }
+   }
+
+   
+   
    // -------------------------------------------------------------------------
    // toDisk(short iNumber)
    /**
@@ -107,69 +244,680 @@ public class Inode {
     * @return
     */
    void toDisk( short iNumber ) {
+      syncIndirect();
+
+	  ////////////////////////////////////////////////////
+	  // Ensure that the other inodes in the block don't get overwritten
+	  ////////////////////////////////////////////////////
+	   
+	  // Read the block from disk
+      int blkContaiingInode = 1 + iNumber / 16; 
+      byte[] newData = new byte[maxBytes];
+      SysLib.cread(blkContaiingInode,newData);
+
+	  // Overwrite this inode's data in block
+      toBlock(iNumber, newData);
+      
+      // Write block back to disk
+      SysLib.cwrite(blkContaiingInode,newData);
+   }
+
+   
+   
+   // -------------------------------------------------------------------------
+   // toBlock(short iNumber, byte[] block)
+   /**
+    * 
+    * Stores the inode at its place in the inode block holding it, in the
+    * format toDisk writes
+    * 
+    * 
+    * @param iNumber							// index of the inode in disk
+    * @param block							// contents of that inode block
+    */
+   void toBlock( short iNumber, byte[] block ) {
       // initialize buffer size
       byte[] inodeInfo = new byte[iNodeSize];
 
       int offset = 0;
 
 	  // Allocate space for data members
-      SysLib.int2bytes(length, inodeInfo, offset);
+      SysLib.int2bytes(Math.max(length, keptLength), inodeInfo, offset);
       offset +=4;
-      SysLib.short2bytes(count, inodeInfo, offset);
+      // Who has the file open does not outlive the boot: an inode written
+      // while open, by fsync or the flusher, is stored as closed
+      SysLib.short2bytes((short)0, inodeInfo, offset);
       offset +=2;
-      SysLib.short2bytes(flag, inodeInfo, offset);
+      SysLib.short2bytes((flag == FileTable.READ || flag == FileTable.WRITE) ?
+                         (short)FileTable.USED : flag, inodeInfo, offset);
       offset +=2;
 
-      // Allocate space for pointers
-      for (int i = 0; i < directSize; i++) {
-         SysLib.short2bytes(direct[i], inodeInfo, offset);
+      // Allocate space for pointers, or the data of a tiny file
+      if (inline) {
+         System.arraycopy(inlineData, 0, inodeInfo, offset, inlineBytes);
+      }
+      else if (format == EXTENTS) {
+         for (int i = 0; i < inlineExtents; i++) {
+            writeExtent(i, inodeInfo, offset);
+            offset += extentBytes;
+         }
+         SysLib.short2bytes(extentBlock, inodeInfo, offset);
          offset +=2;
+         SysLib.short2bytes((short)-1, inodeInfo, offset);
+         SysLib.short2bytes((short)-1, inodeInfo, offset + 2);
+      }
+      else {
+         for (int i = 0; i < directs; i++) {
+            SysLib.short2bytes(direct[i], inodeInfo, offset);
+            offset +=2;
+         }
+         SysLib.short2bytes(indirect, inodeInfo, offset);
+         offset +=2;
+         if (format == INDIRECT) {
+            SysLib.short2bytes(doubleIndirect, inodeInfo, offset);
+            offset +=2;
+            SysLib.short2bytes(tripleIndirect, inodeInfo, offset);
+            offset +=2;
+         }
       }
-      SysLib.short2bytes(indirect, inodeInfo, offset);
-      offset +=2;
-
-	  ////////////////////////////////////////////////////
-	  // Ensure that the other inodes in the block don't get overwritten
-	  ////////////////////////////////////////////////////
-	   
-	  // Read the block from disk
-      int blkContaiingInode = 1 + iNumber / 16; 
-      byte[] newData = new byte[maxBytes];
-      SysLib.rawread(blkContaiingInode,newData);
 
-	  // Overwrite this inode's data in block
       offset = (iNumber % 16) * iNodeSize;
-      System.arraycopy(inodeInfo, 0, newData, offset, iNodeSize);
-      
-      // Write block back to disk
-      SysLib.rawwrite(blkContaiingInode,newData);
+      System.arraycopy(inodeInfo, 0, block, offset, iNodeSize);
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // freeBlocks
+   /**
+    * 
+    * Unmaps every block of the file and returns them, data blocks first
+    * in file order, then the index or extent blocks
+    * 
+    * 
+    * @return
+    */
+   int[] freeBlocks()
+   {
+     if (inline) {
+       for (int i = 0; i < inlineBytes; i++)
+         inlineData[i] = 0;
+       return new int[0];
+     }
+     inline = fitsInline();
+     return freeBlocks(0);
    }
    
    
    
    // -------------------------------------------------------------------------
-   // freeIndirectBlock
+   // freeBlocks
    /**
     * 
-    * Deallocates indirect block, returns its contents
+    * Unmaps the blocks of the file from file block keep on, and the index
+    * or extent blocks left with nothing to map, and returns them, data
+    * blocks first in file order.  Call only while not inline.
     * 
     * 
+    * @param keep							// # file blocks kept
     * @return
     */
-   byte[] freeIndirectBlock()
+   int[] freeBlocks(int keep)
    {
-     if (indirect >= 0) {
-       byte[] indirectBlockContents = new byte[maxBytes];
-       SysLib.rawread(indirect, indirectBlockContents);
-       indirect = -1;
-       return indirectBlockContents;
+     Vector<Integer> data = new Vector<Integer>();
+     Vector<Integer> indexes = new Vector<Integer>();
+     if (format == EXTENTS) {
+       loadExtents();
+       int kept = 0;
+       for (int i = 0; i < extents; i++) {
+         int n = Math.max(0, Math.min(extentLength[i], keep - extentFile[i]));
+         for (int j = n; j < extentLength[i]; j++)
+           data.add(extentStart[i] + j);
+         if (n > 0) {
+           extentLength[i] = (short)n;
+           kept = i + 1;      // in file block order, so the kept come first
+         }
+       }
+       extents = kept;
+       int needed = (Math.max(0, extents - inlineExtents) + blockExtents - 1)
+                    / blockExtents;
+       for (int b = needed; b < extentBlocks.length; b++)
+         indexes.add((int)extentBlocks[b]);
+       extentBlocks = Arrays.copyOf(extentBlocks, needed);
+       if (needed == 0)
+         extentBlock = -1;
+       extentsDirty = extentBlock >= 0;
+     }
+     else {
+       for (int i = keep; i < directs; i++) {
+         if (direct[i] >= 0)
+           data.add((int)direct[i]);
+         direct[i] = -1;
+       }
+       int first = directs;
+       for (int level = 1; level <= 3; level++) {
+         if (rootBlock(level) >= 0 &&
+             prune(root(level), level, first, keep, data, indexes)) {
+           indexes.add((int)rootBlock(level));
+           setRoot(level, (short)-1, null);
+         }
+         first += span(level);
+       }
      }
+
+     int[] blocks = new int[data.size() + indexes.size()];
+     int n = 0;
+     for (int i = 0; i < data.size(); i++)
+       blocks[n++] = data.get(i);
+     for (int i = 0; i < indexes.size(); i++)
+       blocks[n++] = indexes.get(i);
+     return blocks;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // fitsInline
+   /**
+    * 
+    * True if the format stores files of this length inline
+    * 
+    */
+   private boolean fitsInline()
+   {
+     return format != BLOCKS && length <= inlineBytes;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // readInline, writeInline
+   /**
+    * 
+    * Copies n bytes of the inline data from file offset position to
+    * buffer, or from buffer to it.  Call only while inline, within
+    * inlineBytes.
+    * 
+    */
+   void readInline(int position, byte[] buffer, int offset, int n)
+   {
+     System.arraycopy(inlineData, position, buffer, offset, n);
+   }
+
+   void writeInline(int position, byte[] buffer, int offset, int n)
+   {
+     System.arraycopy(buffer, offset, inlineData, position, n);
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // takeInline
+   /**
+    * 
+    * Ends inline storage as the file outgrows the inode: copies the data
+    * to the start of block and maps nothing, so the caller can map a
+    * block for it
+    * 
+    * 
+    * @param block
+    * @return false if there was no data to copy
+    */
+   boolean takeInline(byte[] block)
+   {
+     System.arraycopy(inlineData, 0, block, 0, inlineBytes);
+     for (int i = 0; i < inlineBytes; i++)
+       inlineData[i] = 0;
+     inline = false;
+     return length > 0;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // prune
+   /**
+    * 
+    * Unmaps the data blocks under an index block of the given level from
+    * file block keep on, adding them to data in file order and the index
+    * blocks below it left empty to indexes.  first is the file block its
+    * first pointer maps.
+    * 
+    * 
+    * @return true if the index block maps nothing any more
+    */
+   private boolean prune(Index index, int level, int first, int keep,
+                         Vector<Integer> data, Vector<Integer> indexes)
+   {
+     boolean empty = true;
+     int span = span(level - 1);
+     for (int slot = 0; slot < ptrsPerBlock; slot++) {
+       if (index.map[slot] <= 0)
+         continue;
+       int from = first + slot * span;
+       if (from + span <= keep) {
+         empty = false;
+         continue;
+       }
+       if (level == 1)
+         data.add((int)index.map[slot]);
+       else if (prune(child(index, slot), level - 1, from, keep, data,
+                      indexes))
+         indexes.add((int)index.map[slot]);
+       else {
+         empty = false;
+         continue;
+       }
+       index.map[slot] = -1;
+       if (index.child != null)
+         index.child[slot] = null;
+       index.dirty = true;
+     }
+     return empty;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // maxLength
+   /**
+    * 
+    * Length of the largest file of the format, in bytes
+    * 
+    */
+   int maxLength()
+   {
+     long blocks = directs + span(1);
+     if (format == INDIRECT)
+       blocks += span(2) + span(3);
+     else if (format == EXTENTS)
+       blocks = Short.MAX_VALUE + 1;          // file blocks are shorts
+     return (int)Math.min(blocks * maxBytes, Integer.MAX_VALUE);
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // levelOf
+   /**
+    * 
+    * Which pointer maps file block n: 0 for a direct one, 1, 2 or 3 for
+    * the single, double or triple indirect one, -1 if n lies past the
+    * largest file of the format
+    * 
+    */
+   private int levelOf(int n)
+   {
+     n -= directs;
+     if (n < 0)
+       return 0;
+     int levels = (format == INDIRECT) ? 3 : 1;
+     for (int level = 1; level <= levels; level++) {
+       if (n < span(level))
+         return level;
+       n -= span(level);
+     }
+     return -1;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // span
+   /**
+    * 
+    * Number of file blocks an index block of the given level maps
+    * 
+    */
+   private static int span(int level)
+   {
+     int span = 1;
+     for (int i = 0; i < level; i++)
+       span *= ptrsPerBlock;
+     return span;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // indexOf
+   /**
+    * 
+    * Position of file block n among the blocks the pointer of its level
+    * maps
+    * 
+    */
+   private int indexOf(int n, int level)
+   {
+     n -= directs;
+     for (int i = 1; i < level; i++)
+       n -= span(i);
+     return n;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // rootBlock, setRoot
+   /**
+    * 
+    * The single, double or triple indirect pointer, and setting it
+    * together with its decoded block
+    * 
+    */
+   private short rootBlock(int level)
+   {
+     return (level == 1) ? indirect :
+            (level == 2) ? doubleIndirect : tripleIndirect;
+   }
+
+   private void setRoot(int level, short block, Index index)
+   {
+     if (level == 1)
+       indirect = block;
+     else if (level == 2)
+       doubleIndirect = block;
      else
-       return null; //nothing to free
+       tripleIndirect = block;
+     roots[level] = index;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // root, child
+   /**
+    * 
+    * The index block an indirect pointer, or a slot of a decoded index
+    * block, points to, reading and decoding it the first time.  Call only
+    * when the pointer is set.
+    * 
+    */
+   private Index root(int level)
+   {
+     if (roots[level] == null)
+       roots[level] = readIndex(rootBlock(level));
+     return roots[level];
+   }
+
+   private static Index child(Index index, int slot)
+   {
+     if (index.child == null)
+       index.child = new Index[ptrsPerBlock];
+     if (index.child[slot] == null)
+       index.child[slot] = readIndex(index.map[slot]);
+     return index.child[slot];
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // readIndex, newIndex, writeIndex
+   /**
+    * 
+    * Decodes the index block stored in block; makes a fresh one with no
+    * pointers set, to be written back with the inode; writes back the
+    * changed blocks of a tree
+    * 
+    */
+   private static Index readIndex(short block)
+   {
+     byte[] data = new byte[maxBytes];
+     SysLib.cread(block, data);
+     Index index = new Index();
+     index.block = block;
+     for (int i = 0; i < ptrsPerBlock; i++)
+       index.map[i] = SysLib.bytes2short(data, i * 2);
+     return index;
+   }
+
+   private static Index newIndex(short block)
+   {
+     Index index = new Index();
+     index.block = block;
+     for (int i = 0; i < ptrsPerBlock; i++)
+       index.map[i] = -1;
+     index.dirty = true;
+     return index;
+   }
+
+   private static void writeIndex(Index index)
+   {
+     if (index.child != null)
+       for (int i = 0; i < ptrsPerBlock; i++)
+         if (index.child[i] != null)
+           writeIndex(index.child[i]);
+     if (!index.dirty)
+       return;
+     byte[] data = new byte[maxBytes];
+     for (int i = 0; i < ptrsPerBlock; i++)
+       SysLib.short2bytes(index.map[i], data, i * 2);
+     SysLib.cwrite(index.block, data);
+     index.dirty = false;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // syncIndirect
+   /**
+    * 
+    * Writes the index blocks, or the extent blocks, back if their pointers
+    * were changed
+    * 
+    */
+   void syncIndirect()
+   {
+     if (format == EXTENTS) {
+       if (!extentsDirty || extentBlock < 0)
+         return;
+       for (int b = 0; b < extentBlocks.length; b++) {
+         byte[] data = new byte[maxBytes];
+         for (int i = 0; i < blockExtents; i++)
+           writeExtent(inlineExtents + b * blockExtents + i, data,
+                       i * extentBytes);
+         SysLib.short2bytes((b + 1 < extentBlocks.length) ?
+                            extentBlocks[b + 1] : (short)-1,
+                            data, blockExtents * extentBytes);
+         SysLib.cwrite(extentBlocks[b], data);
+       }
+       extentsDirty = false;
+       return;
+     }
+     for (int level = 1; level <= 3; level++)
+       if (roots[level] != null)
+         writeIndex(roots[level]);
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // readExtent
+   /**
+    * 
+    * Appends the extent stored at offset in data
+    * 
+    */
+   private void readExtent(byte[] data, int offset)
+   {
+     extentFile[extents] = SysLib.bytes2short(data, offset);
+     extentStart[extents] = SysLib.bytes2short(data, offset + 2);
+     extentLength[extents] = SysLib.bytes2short(data, offset + 4);
+     extents++;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // writeExtent
+   /**
+    * 
+    * Stores extent i at offset in data, all -1 if there is no extent i
+    * 
+    */
+   private void writeExtent(int i, byte[] data, int offset)
+   {
+     boolean used = i < extents;
+     SysLib.short2bytes(used ? extentFile[i] : -1, data, offset);
+     SysLib.short2bytes(used ? extentStart[i] : -1, data, offset + 2);
+     SysLib.short2bytes(used ? extentLength[i] : -1, data, offset + 4);
    }
    
    
    
+   // -------------------------------------------------------------------------
+   // loadExtents
+   /**
+    * 
+    * Reads the extents of the extent blocks after the inline ones, the
+    * first time they are needed
+    * 
+    */
+   private void loadExtents()
+   {
+     if (extentsLoaded)
+       return;
+     byte[] data = new byte[maxBytes];
+     for (short block = extentBlock; block > 0; ) {
+       chainExtentBlock(block);
+       SysLib.cread(block, data);
+       for (int i = 0; i < blockExtents; i++)
+         if (SysLib.bytes2short(data, i * extentBytes) >= 0)
+           readExtent(data, i * extentBytes);
+       block = SysLib.bytes2short(data, blockExtents * extentBytes);
+     }
+     extentsLoaded = true;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // chainExtentBlock
+   /**
+    * 
+    * Adds block to the end of the chain and makes room for its extents
+    * 
+    */
+   private void chainExtentBlock(short block)
+   {
+     extentBlocks = Arrays.copyOf(extentBlocks, extentBlocks.length + 1);
+     extentBlocks[extentBlocks.length - 1] = block;
+     int room = inlineExtents + extentBlocks.length * blockExtents;
+     if (extentFile.length < room) {
+       extentFile = Arrays.copyOf(extentFile, room);
+       extentStart = Arrays.copyOf(extentStart, room);
+       extentLength = Arrays.copyOf(extentLength, room);
+     }
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // findExtent
+   /**
+    * 
+    * Binary search of the extents for the one mapping fileBlock.  The
+    * extent block is read only if fileBlock lies past the inline extents.
+    * 
+    * 
+    * @param fileBlock
+    * @return index of the extent, -1 if fileBlock is not mapped
+    */
+   private int findExtent(int fileBlock)
+   {
+     if (!extentsLoaded &&
+         fileBlock >= extentFile[extents - 1] + extentLength[extents - 1])
+       loadExtents();
+     int low = 0;
+     int high = extents - 1;
+     while (low <= high) {
+       int mid = (low + high) >>> 1;
+       if (fileBlock < extentFile[mid])
+         high = mid - 1;
+       else if (fileBlock >= extentFile[mid] + extentLength[mid])
+         low = mid + 1;
+       else
+         return mid;
+     }
+     return -1;
+   }
+   
+   
+   
+   // -------------------------------------------------------------------------
+   // addExtentBlock
+   /**
+    * 
+    * getIndexBlockNumber for the EXTENTS format: maps an unmapped file
+    * block to block, growing the extent before or after it if block
+    * follows or precedes that one on disk, else starting a new extent
+    * 
+    * 
+    * @return the codes of getIndexBlockNumber
+    */
+   private int addExtentBlock(int fileBlock, short block)
+   {
+     if (findExtent(fileBlock) != -1)
+       return -1;
+     loadExtents();
+     // extents are kept in file block order; after is the first one past
+     int after = extents;
+     while (after > 0 && extentFile[after - 1] > fileBlock)
+       after--;
+     int before = after - 1;
+
+     if (before >= 0 &&
+         extentFile[before] + extentLength[before] == fileBlock &&
+         extentStart[before] + extentLength[before] == block &&
+         extentLength[before] < Short.MAX_VALUE) {
+       extentLength[before]++;
+       // the hole between the two may just have been filled
+       if (after < extents && extentFile[after] == fileBlock + 1 &&
+           extentStart[after] == block + 1 &&
+           extentLength[before] + extentLength[after] <= Short.MAX_VALUE) {
+         extentLength[before] += extentLength[after];
+         removeExtent(after);
+       }
+     }
+     else if (after < extents && extentFile[after] == fileBlock + 1 &&
+              extentStart[after] == block + 1 &&
+              extentLength[after] < Short.MAX_VALUE) {
+       extentFile[after]--;
+       extentStart[after]--;
+       extentLength[after]++;
+     }
+     else {
+       if (extents == inlineExtents + extentBlocks.length * blockExtents)
+         return -3;                   // the chain needs another block
+       for (int i = extents; i > after; i--)
+         moveExtent(i - 1, i);
+       extentFile[after] = (short)fileBlock;
+       extentStart[after] = block;
+       extentLength[after] = 1;
+       extents++;
+     }
+     if (extentBlock >= 0)
+       extentsDirty = true;
+     return 0;
+   }
+   
+   private void moveExtent(int from, int to)
+   {
+     extentFile[to] = extentFile[from];
+     extentStart[to] = extentStart[from];
+     extentLength[to] = extentLength[from];
+   }
+   
+   private void removeExtent(int n)
+   {
+     for (int i = n + 1; i < extents; i++)
+       moveExtent(i, i - 1);
+     extents--;
+   }
+
+   
+   
+   
    	// -------------------------------------------------------------------------
    	// getIndexBlockNumber
 	/**
@@ -180,45 +928,52 @@ public class Inode {
 	 * 0 = unused
 	 * -1 = error on write to used block
 	 * -2 = error on write to unused block
-	 * -3 = error on write to null pointer
+	 * -3 = error on write to null pointer: an index block on the way
+	 *      is missing, setIndexBlock has to be given one
 	 */
    int getIndexBlockNumber(int entry, short offset){
     int targetBlock = entry / maxBytes;
 
+    if (format == EXTENTS)
+      return addExtentBlock(targetBlock, offset);
+
+    int level = levelOf(targetBlock);
+
     // If entry should be in a block w a direct pointer
-    if (targetBlock < directSize){
+    if (level == 0){
       if (direct[targetBlock] >= 0){
         return -1;
       }
-      //check if direct pointer is pointing to
-      if((targetBlock > 0) && (direct[(targetBlock - 1)] == -1)){
-        return -2;
-      }
       direct[targetBlock] = offset;
       return 0; //unused
     }
 
-    // If there is no indirect block
-    if (indirect < 0){
+    // Past the largest file
+    if (level == -1){
+      return -2;
+    }
+
+    // If there is no indirect block of that level
+    if (rootBlock(level) < 0){
       return -3;
     }
-    
-    // If there is an indirect block
-    else{
-    	
-      // Read contents of indirect block
-      byte[] data = new byte[maxBytes];
-      SysLib.rawread(indirect,data);
 
-      int offsetInIndirectBlk = (targetBlock - directSize) * 2;
-      if (SysLib.bytes2short(data, offsetInIndirectBlk) > 0){
-        return -1;
-      }
-      else{
-        SysLib.short2bytes(offset, data, offsetInIndirectBlk);
-        SysLib.rawwrite(indirect, data);
+    // Walk the decoded index blocks down to the one holding the pointer
+    Index index = root(level);
+    int n = indexOf(targetBlock, level);
+    for (; level > 1; level--){
+      int slot = n / span(level - 1);
+      if (index.map[slot] <= 0){
+        return -3;
       }
+      index = child(index, slot);
+      n %= span(level - 1);
+    }
+    if (index.map[n] > 0){
+      return -1;
     }
+    index.map[n] = offset;
+    index.dirty = true;
     return 0;
    }
 
@@ -228,38 +983,63 @@ public class Inode {
    // setIndexBlock
    /**
     * 
-    * Sets the index block ptr to point to the passed block number, but
-    * only if all direct ptrs are occupied and index block ptr is unoccupied
+    * Sets the first missing index block on the way to the block holding
+    * entry to the passed block number.  Files may have holes, so the
+    * direct pointers need not be occupied.
     * 
     * 
-    * If index block indirect pointer is not set to -1,
-    * or if all the direct pointers are = -1 then return false.
+    * If no index block is missing there then return false.
     *  
-    * If not, point the indirect pointer to the passed index block,
-    * and return true.
+    * If not, point the indirect pointer of the level, or the pointer of
+    * the index block above, to the passed index block, and return true.
+    * 
+    * In the EXTENTS format the passed block is chained as the next extent
+    * block, once the inline extents and those of the chain are used up.
     *   
+    * @param entry
     * @param indexBlockNumber
     * @return
     */
-   boolean setIndexBlock(short indexBlockNumber){
+   boolean setIndexBlock(int entry, short indexBlockNumber){
 
-	// Don't set the indirect block if there's available direct ptrs
-    for (int i = 0; i < directSize; i++){
-      if (direct[i] == -1)
+    if (format == EXTENTS) {
+      loadExtents();
+      if (extents < inlineExtents + extentBlocks.length * blockExtents)
         return false;
+      if (extentBlock < 0)
+        extentBlock = indexBlockNumber;
+      chainExtentBlock(indexBlockNumber);
+      extentsDirty = true;   // reaches the disk with the inode
+      return true;
     }
-    // Don't set the indirect block if it's already set
-    if (indirect != -1)
+
+    int targetBlock = entry / maxBytes;
+    int level = levelOf(targetBlock);
+    if (level <= 0)
       return false;
 
-    indirect = indexBlockNumber;
-    byte[] data = new byte[maxBytes];
-    for (int i = 0; i < (maxBytes/2); i++){
-        SysLib.short2bytes((short) -1, data, i*2);
+    // New blocks reach the disk with the inode
+    if (rootBlock(level) < 0){
+      setRoot(level, indexBlockNumber, newIndex(indexBlockNumber));
+      return true;
     }
-    SysLib.rawwrite(indexBlockNumber, data);
-
-    return true;
+    Index index = root(level);
+    int n = indexOf(targetBlock, level);
+    for (; level > 1; level--){
+      int slot = n / span(level - 1);
+      if (index.map[slot] <= 0){
+        index.map[slot] = indexBlockNumber;
+        index.dirty = true;
+        if (index.child == null)
+          index.child = new Index[ptrsPerBlock];
+        index.child[slot] = newIndex(indexBlockNumber);
+        return true;
+      }
+      index = child(index, slot);
+      n %= span(level - 1);
+    }
+    // Don't set an index block if they're all set
+    return false;
    }
 
    
@@ -277,20 +1057,33 @@ public class Inode {
     */
    int findTargetBlock(int offset){ 
       int targetBlockNum = offset / maxBytes;
+
+      if (format == EXTENTS) {
+        int i = findExtent(targetBlockNum);
+        if (i == -1)
+          return -1;
+        return extentStart[i] + targetBlockNum - extentFile[i];
+      }
+
       // Return the specified block
-      if (targetBlockNum < directSize)
+      int level = levelOf(targetBlockNum);
+      if (level == 0)
         return direct[targetBlockNum];
 
-      if (indirect < 0)
+      if (level == -1 || rootBlock(level) < 0)
         return -1;
 
-      // Read indirect block from disk
-      byte[] data = new byte[maxBytes];
-      SysLib.rawread(indirect, data);
-
-      // Return the specified block
-      int offsetInIndirectBlock = (targetBlockNum - directSize) *2;
-      return SysLib.bytes2short(data, offsetInIndirectBlock);
+      // Return the specified block from the decoded index blocks
+      Index index = root(level);
+      int n = indexOf(targetBlockNum, level);
+      for (; level > 1; level--) {
+        int slot = n / span(level - 1);
+        if (index.map[slot] <= 0)
+          return -1;
+        index = child(index, slot);
+        n %= span(level - 1);
+      }
+      return index.map[n];
    }
 
 }
@@ -0,0 +1,208 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * InodeCache.java
+ *
+ * Kernel-wide table of in-memory inodes.  Every open of a file shares the
+ * one Inode of its iNumber.  Changed inodes are marked dirty and written
+ * back only on sync, fsync, the last close, when evicted or once dirty
+ * too long, all dirty inodes of an inode block together with one
+ * read-modify-write of that block, each after its changed indirect block.
+ * An inode is stored holding its monitor, which everyone changing it
+ * holds too, so it is never stored half changed.  The lock order is this
+ * cache, then an inode: no one holding an inode calls in here.
+ *
+ */
+public class InodeCache {
+    private final static int inodesPerBlock = 16;
+    private final static int maxInodes = 64;   // resident inodes, unless held
+
+    private int format;                        // Inode.INDIRECT, EXTENTS or BLOCKS
+
+    private class Slot {
+        public Inode inode;
+        public int refs;                       // file table entries holding it
+
+        public Slot(Inode inode) {
+            this.inode = inode;
+            refs = 0;
+        }
+    }
+
+    // resident inodes, least recently used first.  A get( ) reorders it,
+    // so iterations use the entries only.
+    private LinkedHashMap<Short, Slot> table =
+        new LinkedHashMap<Short, Slot>(maxInodes * 2, 0.75f, true);
+
+    /**
+     * @param format format of the inodes on disk
+     */
+    public InodeCache(int format) {
+        this.format = format;
+    }
+
+    /**
+     * Returns the shared inode of iNumber, reading it in if it is not
+     * resident
+     * @param iNumber
+     * @return
+     */
+    public synchronized Inode get(short iNumber) {
+        Slot slot = table.get(iNumber);
+        if (slot == null) {
+            evict();
+            slot = new Slot(new Inode(iNumber, format));
+            table.put(iNumber, slot);
+        }
+        return slot.inode;
+    }
+
+    /**
+     * A file table entry took the inode of iNumber, keeping it resident
+     * @param iNumber
+     */
+    public synchronized void hold(short iNumber) {
+        get(iNumber);
+        table.get(iNumber).refs++;
+    }
+
+    /**
+     * A file table entry let go of the inode of iNumber
+     * @param iNumber
+     */
+    public synchronized void release(short iNumber) {
+        Slot slot = table.get(iNumber);
+        if (slot != null && slot.refs > 0)
+            slot.refs--;
+    }
+
+    /**
+     * The inode of iNumber was changed and has to reach the disk.  Those
+     * holding the inode call its markDirty( ) instead.
+     * @param iNumber
+     */
+    public synchronized void markDirty(short iNumber) {
+        Slot slot = table.get(iNumber);
+        if (slot != null)
+            slot.inode.markDirty();
+    }
+
+    /**
+     * Writes the inode of iNumber back if it is dirty
+     * @param iNumber
+     */
+    public synchronized void flush(short iNumber) {
+        Slot slot = table.get(iNumber);
+        if (slot != null && dirtyFor(slot.inode, -1))
+            writeBlock(iNumber / inodesPerBlock);
+    }
+
+    /**
+     * Writes back the inodes dirty for more than age msec
+     * @param age
+     * @return the number of inode blocks written
+     */
+    public synchronized int flushExpired(long age) {
+        int written = 0;
+        for (Map.Entry<Short, Slot> e : table.entrySet()) {
+            if (dirtyFor(e.getValue().inode, age)) {
+                writeBlock(e.getKey() / inodesPerBlock);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes every dirty inode back, one write per inode block
+     */
+    public synchronized void sync() {
+        for (Map.Entry<Short, Slot> e : table.entrySet())
+            if (dirtyFor(e.getValue().inode, -1))
+                writeBlock(e.getKey() / inodesPerBlock);
+    }
+
+    /**
+     * Drops every inode without writing it, after a format
+     * @param format format the disk was given
+     */
+    public synchronized void clear(int format) {
+        this.format = format;
+        table.clear();
+    }
+
+    /**
+     * Gives back the blocks resident inodes hold reserved, which only
+     * memory knows of, so that the superblock stored next does not keep
+     * them off the free list for good after a crash.  The run goes back
+     * on the head of the list, where the file takes it again next.
+     * @param superblock
+     */
+    public synchronized void unreserve(SuperBlock superblock) {
+        for (Slot slot : table.values()) {
+            Inode inode = slot.inode;
+            synchronized (inode) {
+                if (inode.reserved > 0) {
+                    superblock.returnRun(inode.reserveNext, inode.reserved);
+                    inode.reserved = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether inode has been dirty for more than age msec, or at all if
+     * age is negative
+     * @param inode
+     * @param age
+     * @return
+     */
+    private static boolean dirtyFor(Inode inode, long age) {
+        synchronized (inode) {
+            return inode.dirty &&
+                (age < 0 || System.currentTimeMillis() - inode.dirtiedAt > age);
+        }
+    }
+
+    /**
+     * Writes back the dirty inodes stored in the given inode block and
+     * marks them clean, each under its monitor
+     * @param block
+     */
+    private void writeBlock(int block) {
+        byte[] data = new byte[Disk.blockSize];
+        SysLib.cread(1 + block, data);
+        for (Map.Entry<Short, Slot> e : table.entrySet()) {
+            Inode inode = e.getValue().inode;
+            if (e.getKey() / inodesPerBlock != block)
+                continue;
+            synchronized (inode) {
+                if (inode.dirty) {
+                    inode.syncIndirect();
+                    inode.toBlock(e.getKey(), data);
+                    inode.dirty = false;
+                }
+            }
+        }
+        SysLib.cwrite(1 + block, data);
+    }
+
+    /**
+     * Makes room for one more inode by dropping the least recently used
+     * unreferenced ones, writing their blocks back first if dirty
+     */
+    private void evict() {
+        Iterator<Map.Entry<Short, Slot>> i = table.entrySet().iterator();
+        while (table.size() >= maxInodes && i.hasNext()) {
+            Map.Entry<Short, Slot> e = i.next();
+            if (e.getValue().refs > 0)
+                continue;
+            if (dirtyFor(e.getValue().inode, -1))
+                writeBlock(e.getKey() / inodesPerBlock);
+            i.remove();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ *
+ * InodeFlusher.java
+ *
+ * Kernel thread that writes inodes changed only in memory back to the
+ * cache once they have been dirty too long, so that the cache flusher
+ * takes them to the disk even if no sync or close comes.
+ *
+ */
+public class InodeFlusher extends Thread {
+    private final static int interval = 1000;      // msec between checks
+    private final static long expire = 5000;       // msec an inode may stay dirty
+
+    private FileSystem fs;
+
+    public InodeFlusher(FileSystem fs) {
+        this.fs = fs;
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                sleep(interval);
+            } catch (InterruptedException e) {
+                SysLib.cerr(e.toString() + "\n");
+            }
+            fs.flushInodes(expire);
+        }
+    }
+}
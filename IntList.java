@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ *
+ * IntList.java
+ *
+ * Set of non-negative ints kept in the order they were added, like a
+ * LinkedHashSet<Integer>, but linked through int arrays and indexed by an
+ * IntMap, so that it allocates no object per element.  Holds the page and
+ * block id lists of the cache replacement policies.
+ *
+ */
+public class IntList {
+    private final static int NONE = -1;
+
+    private IntMap nodeOf;            // value -> node
+    private int[] values;             // value of each node
+    private int[] next;               // node after, NONE at the tail
+    private int[] prev;               // node before, NONE at the head
+    private int head;
+    private int tail;
+    private int free;                 // unused nodes, chained through next
+    private int size;
+
+    public IntList(int expected) {
+        nodeOf = new IntMap(expected);
+        allocate(Math.max(expected, 4));
+    }
+
+    private void allocate(int nodes) {
+        values = new int[nodes];
+        next = new int[nodes];
+        prev = new int[nodes];
+        clear();
+    }
+
+    public void clear() {
+        nodeOf.clear();
+        for (int i = 0; i < next.length; i++)
+            next[i] = i + 1;
+        next[next.length - 1] = NONE;
+        free = 0;
+        head = tail = NONE;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int x) {
+        return nodeOf.get(x) != NONE;
+    }
+
+    /**
+     * Adds x last unless it is there already.  Returns whether it was added.
+     */
+    public boolean add(int x) {
+        if (contains(x))
+            return false;
+        if (free == NONE)
+            grow();
+        int n = free;
+        free = next[n];
+        values[n] = x;
+        prev[n] = tail;
+        next[n] = NONE;
+        if (tail != NONE)
+            next[tail] = n;
+        else
+            head = n;
+        tail = n;
+        nodeOf.put(x, n);
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes x.  Returns whether it was there.
+     */
+    public boolean remove(int x) {
+        int n = nodeOf.get(x);
+        if (n == NONE)
+            return false;
+        if (prev[n] != NONE)
+            next[prev[n]] = next[n];
+        else
+            head = next[n];
+        if (next[n] != NONE)
+            prev[next[n]] = prev[n];
+        else
+            tail = prev[n];
+        next[n] = free;
+        free = n;
+        nodeOf.remove(x);
+        size--;
+        return true;
+    }
+
+    /**
+     * The oldest element, -1 if the list is empty
+     */
+    public int first() {
+        return (head != NONE) ? values[head] : -1;
+    }
+
+    /**
+     * The element added after x, -1 if x is the last or absent
+     */
+    public int next(int x) {
+        int n = nodeOf.get(x);
+        return (n != NONE && next[n] != NONE) ? values[next[n]] : -1;
+    }
+
+    /**
+     * Removes and returns the oldest element, -1 if the list is empty
+     */
+    public int removeFirst() {
+        int x = first();
+        if (x != -1)
+            remove(x);
+        return x;
+    }
+
+    /**
+     * Makes x the newest element, adding it if it is absent
+     */
+    public void moveLast(int x) {
+        remove(x);
+        add(x);
+    }
+
+    private void grow() {
+        int old = values.length;
+        values = Arrays.copyOf(values, old * 2);
+        next = Arrays.copyOf(next, old * 2);
+        prev = Arrays.copyOf(prev, old * 2);
+        for (int i = old; i < next.length; i++)
+            next[i] = i + 1;
+        next[next.length - 1] = NONE;
+        free = old;
+    }
+}
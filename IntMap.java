@@ -0,0 +1,109 @@
+import java.util.Arrays;
+
+/**
+ *
+ * IntMap.java
+ *
+ * Hash map from non-negative int keys to int values, kept in two int
+ * arrays with open addressing and linear probing, so that it allocates
+ * no object per entry.  Indexes cache pages by block id.
+ *
+ */
+public class IntMap {
+    private final static int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;                 // slots - 1, slots a power of two
+
+    public IntMap(int expected) {
+        int slots = 4;
+        while (slots < expected * 2)
+            slots <<= 1;
+        allocate(slots);
+    }
+
+    private void allocate(int slots) {
+        keys = new int[slots];
+        values = new int[slots];
+        Arrays.fill(keys, EMPTY);
+        mask = slots - 1;
+        size = 0;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Value of key, -1 if key is absent
+     */
+    public int get(int key) {
+        for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return values[i];
+        return -1;
+    }
+
+    public void put(int key, int value) {
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+        if (keys[i] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                put(key, value);
+                return;
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * Removes key, shifting back the entries probed past it so that no
+     * lookup stops early at the hole
+     */
+    public void remove(int key) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY)
+                return;
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // keys[j] may move to the hole unless home lies in (i, j]
+            boolean stays = (i <= j) ? (i < home && home <= j)
+                                     : (i < home || home <= j);
+            if (!stays) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != EMPTY)
+                put(oldKeys[i], oldValues[i]);
+    }
+}
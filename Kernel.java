@@ -45,6 +45,25 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored disk I/O
+   public final static int RAWREADV  = 20; // SysLib.rawreadv(int blk[], byte b[][])
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blk[], byte b[][])
+
+   // Disk instrumentation
+   public final static int DISKSTAT  = 22; // SysLib.diskstat(StringBuffer s)
+
+   // Vectored cache I/O and cache instrumentation
+   public final static int CREADV    = 23; // SysLib.creadv(int blk[], byte b[][])
+   public final static int CWRITEV   = 24; // SysLib.cwritev(int blk[], byte b[][])
+   public final static int CACHESTAT = 25; // SysLib.cachestat(StringBuffer s)
+   public final static int CPREFETCH = 26; // SysLib.cprefetch(int blk[])
+
+   // Preallocation and truncation
+   public final static int FALLOCATE = 27; // SysLib.fallocate(int fd, int offset,
+   //              int len)
+   public final static int TRUNCATE  = 28; // SysLib.truncate(int fd, int length)
+   public final static int FSYNC     = 29; // SysLib.fsync(int fd)
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -56,8 +75,9 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static BlockDevice disk;
    private static Cache cache;
+   private static CachePrefetcher prefetcher; // null if readahead=off
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
@@ -66,8 +86,10 @@ public class Kernel
    // File System
    private static FileSystem fs;
 
+   // Boot options given as "name=value" words, e.g. java Boot disk=lazy
+   private static String[] bootOptions = new String[0];
+
    private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
 
    // Standard input
    private static BufferedReader input
@@ -76,27 +98,81 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      DiskRequest request;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
                case BOOT:
+                  if ( args != null )
+                     bootOptions = ( String[] )args;
+
                   // instantiate and start a scheduler
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
-                  disk.start( );
+                  // instantiate and start a disk, or several striped or
+                  // mirrored ones
+                  int disks = Integer.parseInt( bootOption( "disks", "1" ) );
+                  String raid = bootOption( "raid", "none" );
+                  if ( raid.equals( "0" ) && disks > 1 ) {
+                     Disk stripes[] = new Disk[disks];
+                     for ( int i = 0; i < disks; i++ )
+                        stripes[i] = startDisk( ( 1000 + disks - 1 ) / disks,
+                                                "DISK." + i );
+                     disk = new StripedDisk( stripes, 1000 );
+                  }
+                  else if ( raid.equals( "1" ) && disks > 1 ) {
+                     Disk mirrors[] = new Disk[disks];
+                     String mirrorFiles[] = new String[disks];
+                     for ( int i = 0; i < disks; i++ )
+                        mirrorFiles[i] = "DISK.m" + i;
+                     MirroredDisk.resync( mirrorFiles, 1000 * Disk.blockSize );
+                     for ( int i = 0; i < disks; i++ )
+                        mirrors[i] = startDisk( 1000, mirrorFiles[i] );
+                     disk = new MirroredDisk( mirrors );
+                  }
+                  else
+                     disk = startDisk( 1000, "DISK" );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // instantiate a cache memory, cache=N blocks replaced
+                  // by cachepolicy=clock|2q|arc|lirs and kept in
+                  // cachestore=heap|slab; cacheshadow=on also simulates
+                  // the other policies to compare their hit ratios
+                  cache = new Cache( Disk.blockSize,
+                                     Integer.parseInt( bootOption( "cache", "10" ) ),
+                                     bootOption( "cachepolicy", "clock" ),
+                                     bootOption( "cachestore", "heap" ),
+                                     bootOption( "cacheshadow", "off" ).equals( "on" ),
+                                     1000 );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
-                  // instantiate a file system;
-                  fs = new FileSystem( 1000 );
+                  // instantiate a file system; a format gives the inodes
+                  // direct and up to triple indirect pointers, extents if
+                  // inode=extents, or the old 11 direct and one indirect
+                  // pointer if inode=blocks
+                  String inode = bootOption( "inode", "indirect" );
+                  fs = new FileSystem( 1000,
+                                       inode.equals( "extents" ) ? Inode.EXTENTS :
+                                       inode.equals( "blocks" ) ? Inode.BLOCKS :
+                                       Inode.INDIRECT );
+
+                  // trickle dirty cache blocks, and inodes dirty too long,
+                  // out in the background unless flusher=off
+                  if ( !bootOption( "flusher", "on" ).equals( "off" ) )
+                  {
+                     new CacheFlusher( cache, disk ).start( );
+                     new InodeFlusher( fs ).start( );
+                  }
+
+                  // read ahead for sequential file reads unless readahead=off
+                  if ( !bootOption( "readahead", "on" ).equals( "off" ) )
+                  {
+                     prefetcher = new CachePrefetcher( cache );
+                     prefetcher.start( );
+                  }
 
                   return OK;
                   
@@ -130,26 +206,37 @@ public class Kernel
                   return OK;
                   
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.read( param, ( byte[] )args ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return request.waitFor( ) ? OK : ERROR;
                   
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.write( param, ( byte[] )args ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return request.waitFor( ) ? OK : ERROR;
                   
-               case SYNC:
-                  fs.sync( );
-                  while ( disk.sync( ) == false )
+               case RAWREADV: // read a list of blocks as one disk request
+                  while ( ( request = disk.read( ( int[] )( ( Object[] )args )[0],
+                                       ( byte[][] )( ( Object[] )args )[1] ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  return request.waitFor( ) ? OK : ERROR;
+
+               case RAWWRITEV: // write a list of blocks as one disk request
+                  while ( ( request = disk.write( ( int[] )( ( Object[] )args )[0],
+                                        ( byte[][] )( ( Object[] )args )[1] ) ) == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  return request.waitFor( ) ? OK : ERROR;
+
+               case DISKSTAT: // append the disk statistics to a buffer
+                  ( ( StringBuffer )args ).append( disk.stats( ) );
                   return OK;
+
+               case SYNC:
+                  fs.sync( );
+                  return syncCache( );
+
+               case CSYNC:
+                  return syncCache( );
                   
                // Implemented for final project
                case READ:
@@ -213,13 +300,26 @@ public class Kernel
                case CWRITE:  // to be implemented in assignment 4
                   return cache.write( param, ( byte[] )args ) ? OK : ERROR;
                   
-               case CSYNC:   // to be implemented in assignment 4
-                  cache.sync( );
-                  return OK;
-                  
                case CFLUSH:  // to be implemented in assignment 4
-                  cache.flush( );
+                  return cache.flush( ) ? OK : ERROR;
+
+               case CREADV:  // read a list of blocks through the cache
+                  return cache.read( ( int[] )( ( Object[] )args )[0],
+                                     ( byte[][] )( ( Object[] )args )[1] ) ? OK : ERROR;
+
+               case CWRITEV: // write a list of blocks through the cache
+                  return cache.write( ( int[] )( ( Object[] )args )[0],
+                                      ( byte[][] )( ( Object[] )args )[1] ) ? OK : ERROR;
+
+               case CACHESTAT: // append the cache hit counters to a buffer
+                  ( ( StringBuffer )args ).append( cache.stats( ) );
                   return OK;
+
+               case CPREFETCH: // queue blocks to be read into the cache ahead,
+                               // returns how many of the first were queued
+                  if ( prefetcher == null )
+                     return ERROR;
+                  return prefetcher.submit( ( int[] )args );
                   
                // Implemented for final project
                case OPEN:
@@ -265,9 +365,38 @@ public class Kernel
                   } 
                   return ERROR;
                   
+               case FALLOCATE: // map a range of a file ahead of writing it
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     int[] fallocateArgs = ( int[] )args;
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return fs.fallocate( ftEnt, fallocateArgs[0],
+                                             fallocateArgs[1] );
+                  }
+                  return ERROR;
+
+               case TRUNCATE: // cut or extend a file to a length
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return fs.truncate( ftEnt, ( ( int[] )args )[0] );
+                  }
+                  return ERROR;
+
+               case FSYNC: // write back a file and its inode, then sync the disk
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null && fs.fsync( ftEnt ) == OK )
+                        return syncCache( );
+                  }
+                  return ERROR;
+
                // Implemented for final project
                case FORMAT:
-                  return ( fs.format( param ) == true ) ? OK : ERROR;
+                  // the new file system is written back from the cache at
+                  // once, so that raw reads see it
+                  boolean formatted = fs.format( param );
+                  return cache.sync( ) && formatted ? OK : ERROR;
                
                // Implemented for final project
                case DELETE:
@@ -276,9 +405,7 @@ public class Kernel
             return ERROR;
             
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
+            // completions are signalled on each DiskRequest directly;
             // wake up the thread waiting for a request acceptance
             ioQueue.dequeueAndWakeup( COND_DISK_REQ );
 
@@ -289,6 +416,44 @@ public class Kernel
       return OK;
    }
 
+   // Instantiates and starts a disk of the given size backed by fileName,
+   // set up from the disk, sched, time, device and channels boot options
+   private static Disk startDisk( int blocks, String fileName ) {
+      String storeName = bootOption( "disk", "heap" );
+      int store = storeName.equals( "mapped" ) ? Disk.MAPPED :
+         storeName.equals( "lazy" ) ? Disk.LAZY : Disk.HEAP;
+      Disk newDisk = new Disk( blocks, store, fileName );
+      String sched = bootOption( "sched", "clook" );
+      if ( sched.equals( "fcfs" ) )
+         newDisk.setPolicy( Disk.FCFS );
+      else if ( sched.equals( "scan" ) )
+         newDisk.setPolicy( Disk.SCAN );
+      newDisk.setVirtualTime( bootOption( "time", "real" ).equals( "virtual" ) );
+      DiskModel model = DiskModel.forName( bootOption( "device", "classic" ),
+         blocks, Integer.parseInt( bootOption( "channels", "4" ) ) );
+      if ( model != null )
+         newDisk.setModel( model );
+      newDisk.start( );
+      return newDisk;
+   }
+
+   // Writes the dirty cache blocks back, then syncs the disk to its file
+   private static int syncCache( ) {
+      DiskRequest request;
+      boolean written = cache.sync( );
+      while ( ( request = disk.sync( ) ) == null )
+         ioQueue.enqueueAndSleep( COND_DISK_REQ );
+      return request.waitFor( ) && written ? OK : ERROR;
+   }
+
+   // Returns the value of the boot option "name=value", or def if absent
+   private static String bootOption( String name, String def ) {
+      for ( int i = 0; i < bootOptions.length; i++ )
+         if ( bootOptions[i].startsWith( name + "=" ) )
+            return bootOptions[i].substring( name.length( ) + 1 );
+      return def;
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,164 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * 
+ * MirroredDisk.java
+ * 
+ * RAID-1: the same blocks kept on two or more Disks.  Writes and syncs go
+ * to every replica; each read goes to the one replica with the shortest
+ * queue, the nearest head breaking ties, so reads spread over the mirrors.
+ * The replicas are made identical at boot by resync( ).
+ *
+ */
+public class MirroredDisk implements BlockDevice {
+    private Disk disks[];
+    // replica each caller refused by all of them waits on, and retries on
+    private Hashtable<Thread, Integer> waitingOn = new Hashtable<Thread, Integer>( );
+
+    public MirroredDisk( Disk disks[] ) {
+	this.disks = disks;
+    }
+
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+	int replica = pickReplica( blockId );
+	return ( replica < 0 ) ? null : disks[replica].read( blockId, buffer );
+    }
+
+    public synchronized DiskRequest read( int blockIds[], byte buffers[][] ) {
+	int replica = pickReplica( ( blockIds != null && blockIds.length > 0 ) ?
+				   blockIds[0] : 0 );
+	return ( replica < 0 ) ? null : disks[replica].read( blockIds, buffers );
+    }
+
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
+	return write( new int[] { blockId }, new byte[][] { buffer } );
+    }
+
+    public synchronized DiskRequest write( int blockIds[], byte buffers[][] ) {
+	if ( !allHaveRoom( ) )
+	    return null;
+	DiskRequest parts[] = new DiskRequest[ disks.length ];
+	for ( int i = 0; i < disks.length; i++ )
+	    parts[i] = disks[i].write( blockIds, buffers );
+	return new DiskRequest( parts );
+    }
+
+    public synchronized DiskRequest sync( ) {
+	if ( !allHaveRoom( ) )
+	    return null;
+	DiskRequest parts[] = new DiskRequest[ disks.length ];
+	for ( int i = 0; i < disks.length; i++ )
+	    parts[i] = disks[i].sync( );
+	return new DiskRequest( parts );
+    }
+
+    private boolean allHaveRoom( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    if ( !disks[i].hasRoom( ) )
+		return false;
+	return true;
+    }
+
+    // Index of the replica to read blockId from, or -1 if it has to wait.
+    // A caller refused before retries on the replica it waited on, whose
+    // interrupt woke it.  If every queue is full the caller waits on the
+    // replica that would have been picked and is counted as refused by it.
+    private int pickReplica( int blockId ) {
+	Integer waited = waitingOn.remove( Thread.currentThread( ) );
+	if ( waited != null )
+	    return refusedBy( waited.intValue( ) ) ? -1 : waited.intValue( );
+
+	int best = -1;
+	int bestFull = -1;
+	for ( int i = 0; i < disks.length; i++ ) {
+	    if ( !disks[i].isFull( ) ) {
+		if ( best < 0 || closer( i, best, blockId ) )
+		    best = i;
+	    }
+	    else if ( bestFull < 0 || closer( i, bestFull, blockId ) )
+		bestFull = i;
+	}
+	if ( best < 0 && !refusedBy( bestFull ) )
+	    best = bestFull;                // a slot just freed up
+	return best;
+    }
+
+    // True if replica i would serve blockId sooner than replica j: a
+    // shorter queue, or the nearer head
+    private boolean closer( int i, int j, int blockId ) {
+	int depthI = disks[i].queueDepth( );
+	int depthJ = disks[j].queueDepth( );
+	if ( depthI != depthJ )
+	    return depthI < depthJ;
+	return Math.abs( disks[i].headPosition( ) - blockId ) <
+	    Math.abs( disks[j].headPosition( ) - blockId );
+    }
+
+    // Asks replica i for a slot.  If it has none the caller is counted as
+    // refused by it and noted to retry on it once woken.
+    private boolean refusedBy( int i ) {
+	if ( disks[i].hasRoom( ) )
+	    return false;
+	waitingOn.put( Thread.currentThread( ), i );
+	return true;
+    }
+
+    // Makes the replica files identical before their Disks load them: the
+    // first one that exists and is not empty is copied over every other
+    // one that is missing or differs.  If none exists all start blank.
+    public static void resync( String fileNames[], int bytes ) {
+	int source = -1;
+	for ( int i = 0; i < fileNames.length && source < 0; i++ )
+	    if ( new File( fileNames[i] ).length( ) > 0 )
+		source = i;
+	if ( source < 0 )
+	    return;
+	byte image[] = readImage( fileNames[source], bytes );
+	for ( int i = 0; i < fileNames.length; i++ ) {
+	    if ( i == source ||
+		 Arrays.equals( image, readImage( fileNames[i], bytes ) ) )
+		continue;
+	    try {
+		FileOutputStream ofstream = new FileOutputStream( fileNames[i] );
+		ofstream.write( image );
+		ofstream.close( );
+		SysLib.cerr( "threadOS: " + fileNames[i] + " resynced from " +
+			     fileNames[source] + "\n" );
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    // The first bytes of a file, zero past its end or if it is missing
+    private static byte[] readImage( String fileName, int bytes ) {
+	byte image[] = new byte[ bytes ];
+	try {
+	    DataInputStream ifstream =
+		new DataInputStream( new FileInputStream( fileName ) );
+	    int size = (int)Math.min( new File( fileName ).length( ), bytes );
+	    ifstream.readFully( image, 0, size );
+	    ifstream.close( );
+	} catch ( IOException e ) {
+	    // missing or short: the rest stays zero
+	}
+	return image;
+    }
+
+    // Requests waiting or in service on all the disks
+    public int queueDepth( ) {
+	int depth = 0;
+	for ( int i = 0; i < disks.length; i++ )
+	    depth += disks[i].queueDepth( );
+	return depth;
+    }
+
+    public String stats( ) {
+	String s = "";
+	for ( int i = 0; i < disks.length; i++ )
+	    s += "mirror " + i + ":\n" + disks[i].stats( );
+	return s;
+    }
+}
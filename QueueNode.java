@@ -0,0 +1,34 @@
+import java.util.*;
+
+/**
+ * 
+ * QueueNode.java
+ * 
+ * One wait condition of a SyncQueue.  Each wakeup leaves the waker's id
+ * behind, and each sleep consumes one, so a wakeup is never lost.
+ *
+ */
+public class QueueNode {
+   private Vector<Integer> pidQueue;
+
+   public QueueNode( ) {
+      pidQueue = new Vector<Integer>( );
+      pidQueue.clear( );
+   }
+
+   public synchronized int sleep( ) {
+      // another sleeper may take the id this thread was notified for, so
+      // test again after waking up
+      while ( pidQueue.size( ) == 0 ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) { }
+      }
+      return pidQueue.remove( 0 ).intValue( );
+   }
+
+   public synchronized void wakeup( int pid ) {
+      pidQueue.add( Integer.valueOf( pid ) );
+      notify( );
+   }
+}
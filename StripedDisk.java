@@ -0,0 +1,109 @@
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * 
+ * StripedDisk.java
+ * 
+ * RAID-0: one logical block space striped block by block over several
+ * Disks, each with its own backing file and service thread.  Logical
+ * block b lives on disk b % n as block b / n, so a run of logical blocks
+ * becomes a run of consecutive blocks on every disk, served in parallel.
+ *
+ */
+public class StripedDisk implements BlockDevice {
+    private Disk disks[];
+    private int totalBlocks;
+
+    public StripedDisk( Disk disks[], int totalBlocks ) {
+	this.disks = disks;
+	this.totalBlocks = totalBlocks;
+    }
+
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+	return read( new int[] { blockId }, new byte[][] { buffer } );
+    }
+
+    public synchronized DiskRequest read( int blockIds[], byte buffers[][] ) {
+	return submit( true, blockIds, buffers );
+    }
+
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
+	return write( new int[] { blockId }, new byte[][] { buffer } );
+    }
+
+    public synchronized DiskRequest write( int blockIds[], byte buffers[][] ) {
+	return submit( false, blockIds, buffers );
+    }
+
+    public synchronized DiskRequest sync( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    if ( !disks[i].hasRoom( ) )
+		return null;
+	DiskRequest parts[] = new DiskRequest[ disks.length ];
+	for ( int i = 0; i < disks.length; i++ )
+	    parts[i] = disks[i].sync( );
+	return new DiskRequest( parts );
+    }
+
+    // Splits the logical blocks by disk and queues one vectored request on
+    // each disk involved, but only once all of them have room
+    private DiskRequest submit( boolean read, int blockIds[], byte buffers[][] ) {
+	if ( blockIds == null || buffers == null || blockIds.length == 0 ||
+	     blockIds.length != buffers.length )
+	    return failed( );
+	int ids[][] = new int[ disks.length ][];      // per disk, count[d] used
+	byte bufs[][][] = new byte[ disks.length ][][];
+	int count[] = new int[ disks.length ];
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    if ( blockIds[i] < 0 || blockIds[i] >= totalBlocks ) {
+		SysLib.cerr( "threadOS: a wrong blockId for " +
+			     ( read ? "read\n" : "write\n" ) );
+		return failed( );
+	    }
+	    int d = blockIds[i] % disks.length;
+	    if ( ids[d] == null ) {
+		if ( !disks[d].hasRoom( ) )
+		    return null;
+		ids[d] = new int[ blockIds.length ];
+		bufs[d] = new byte[ blockIds.length ][];
+	    }
+	    ids[d][count[d]] = blockIds[i] / disks.length;
+	    bufs[d][count[d]++] = buffers[i];
+	}
+
+	Vector<DiskRequest> parts = new Vector<DiskRequest>( );
+	for ( int d = 0; d < disks.length; d++ ) {
+	    if ( ids[d] == null )
+		continue;
+	    int diskIds[] = Arrays.copyOf( ids[d], count[d] );
+	    byte diskBufs[][] = Arrays.copyOf( bufs[d], count[d] );
+	    parts.addElement( read ? disks[d].read( diskIds, diskBufs )
+			      : disks[d].write( diskIds, diskBufs ) );
+	}
+	if ( parts.size( ) == 1 )
+	    return parts.elementAt( 0 );
+	return new DiskRequest( parts.toArray( new DiskRequest[0] ) );
+    }
+
+    private DiskRequest failed( ) {
+	DiskRequest request = new DiskRequest( 0, new int[0], null );
+	request.fail( );
+	return request;
+    }
+
+    // Requests waiting or in service on all the disks
+    public int queueDepth( ) {
+	int depth = 0;
+	for ( int i = 0; i < disks.length; i++ )
+	    depth += disks[i].queueDepth( );
+	return depth;
+    }
+
+    public String stats( ) {
+	String s = "";
+	for ( int i = 0; i < disks.length; i++ )
+	    s += "stripe " + i + ":\n" + disks[i].stats( );
+	return s;
+    }
+}
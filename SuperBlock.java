@@ -12,14 +12,17 @@ public class SuperBlock{
 	public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of inodes
     public int freeList;    // the block number of the head block of the free list
+    public int inodeFormat; // Inode.INDIRECT, EXTENTS or BLOCKS
     
 	private final int defaultInodeBlocks = 64;
 	private final int totalBlockLocation = 0;
 	private final int totalInodeLocation = 4;
 	private final int freeListLocation = 8;
+	private final int inodeFormatLocation = 12;
 	private final int defaultBlocks = 1000;
 	
 	public int inodeBlocks;
+	private int formatOption;	// inode format the next format gives
 
 
     
@@ -27,15 +30,18 @@ public class SuperBlock{
     /**
      * constructor for SuperBlock
      * @param numBlocks
+     * @param newInodeFormat	inode format the disk gets if it is formatted
      */
-	public SuperBlock(int numBlocks){
+	public SuperBlock(int numBlocks, int newInodeFormat){
+		formatOption = newInodeFormat;
 		byte[] superBlock = new byte[Disk.blockSize];	// read superblock from disk
 		
-		SysLib.rawread(0, superBlock);		// Superblock located in index 0
+		SysLib.cread(0, superBlock);		// Superblock located in index 0
 
 		totalBlocks = SysLib.bytes2int(superBlock,totalBlockLocation);
 		totalInodes = SysLib.bytes2int(superBlock,totalInodeLocation);
 		freeList = SysLib.bytes2int(superBlock,freeListLocation);
+		inodeFormat = SysLib.bytes2int(superBlock,inodeFormatLocation); // 0 on older disks
 
 		inodeBlocks = totalInodes;
 		
@@ -54,15 +60,16 @@ public class SuperBlock{
      * Reload the superBlock from the disk
      * Update   totalBlocks totalInodes freelist
      */
-	public void sync(){
+	public synchronized void sync(){
 		byte[] superBlockData = new byte[Disk.blockSize];
 		
 		SysLib.int2bytes(totalBlocks,superBlockData,totalBlockLocation);
 		SysLib.int2bytes(totalInodes,superBlockData,totalInodeLocation);
 		SysLib.int2bytes(freeList,superBlockData,freeListLocation);
+		SysLib.int2bytes(inodeFormat,superBlockData,inodeFormatLocation);
 
 		// write superblock data to disk
-		SysLib.rawwrite(0,superBlockData);
+		SysLib.cwrite(0,superBlockData);
 	}
 
 	
@@ -71,11 +78,11 @@ public class SuperBlock{
      * get the first freeBlock
      * @return -1 if invalid
      */
-	public int getFreeBlock(){
+	public synchronized int getFreeBlock(){
 		// Check that freeList is valid
 		if(freeList > 0 && freeList < totalBlocks){
 			byte[] tempBlock = new byte[Disk.blockSize];
-			SysLib.rawread(freeList, tempBlock);	// read free block into tempBlock
+			SysLib.cread(freeList, tempBlock);	// read free block into tempBlock
 			int retVal = freeList;
 			freeList = SysLib.bytes2int(tempBlock, 0);
 			return retVal;	
@@ -86,47 +93,95 @@ public class SuperBlock{
 	
 	
 	/**
-	 * Attempt to free the block at the specified block index.
+	 * Takes up to count blocks off the head of the free list in one go.
+	 * The list is in block order after a format, so they mostly come as
+	 * one contiguous run.
+	 * 
+	 * 
+	 * @param count
+	 * @return the blocks taken, fewer than count if the list ran out
+	 */
+	public synchronized int[] getFreeBlocks(int count){
+		int[] blocks = new int[count];
+		int n = 0;
+		byte[] tempBlock = new byte[Disk.blockSize];
+		while(n < count && freeList > 0 && freeList < totalBlocks){
+			SysLib.cread(freeList, tempBlock);	// next free block follows
+			blocks[n++] = freeList;
+			freeList = SysLib.bytes2int(tempBlock, 0);
+		}
+		if(n < count){
+			int[] taken = new int[n];
+			System.arraycopy(blocks, 0, taken, 0, n);
+			blocks = taken;
+		}
+		return blocks;
+	}
+
+	
+	
+	/**
+	 * Takes up to max blocks off the head of the free list as long as
+	 * each is the one right after the block before, starting after block
+	 * after, so that together with it they form one run.  Checking the
+	 * head and taking it is one step, so no other file can take a block
+	 * of the run in between.
+	 * 
+	 * 
+	 * @param after
+	 * @param max
+	 * @return the number of blocks taken, after + 1 and on
+	 */
+	public synchronized int takeRun(int after, int max){
+		int n = 0;
+		while(n < max && freeList == after + 1 + n){
+			if(getFreeBlock() == -1)
+				break;
+			n++;
+		}
+		return n;
+	}
+
+	
+	
+	/**
+	 * Gives back blocks first .. first + count - 1, taken off the head of
+	 * the free list and never used, by pushing them back on its head so
+	 * that it again starts with the run
+	 * 
+	 * 
+	 * @param first
+	 * @param count
+	 */
+	public synchronized void returnRun(int first, int count){
+		byte[] freeBlock = new byte[Disk.blockSize];
+		for(int i = first + count - 1; i >= first; i--){
+			SysLib.int2bytes(freeList, freeBlock, 0);
+			SysLib.cwrite(i, freeBlock);
+			freeList = i;
+		}
+	}
+
+	
+	
+	/**
+	 * Attempt to free the block at the specified block index.  It is
+	 * pushed on the head of the free list, so freeing takes one write
+	 * however long the list is.
 	 * 
 	 * 
 	 * @param blockNumber
 	 * @return False if operation fails
 	 */
-	public boolean returnBlock(int blockNumber){
+	public synchronized boolean returnBlock(int blockNumber){
 		// If valid block number
 		if(blockNumber > 0 && blockNumber < totalBlocks){
-			int nextFreeBlockNum = freeList;
-			int temp = 0;
-			byte[] nextFreeBlock = new byte[Disk.blockSize];
-			// Block being appended to free list
+			// Cleared block pointing to the old head
 			byte[] newFreeBlock = new byte[Disk.blockSize];
-
-			// Clear the contents of the block being freed
-			for(int i = 0; i < Disk.blockSize; i++){
-				newFreeBlock[i] = 0;
-			}
-
-			// Last block in free list must point to -1
-			SysLib.int2bytes(-1,newFreeBlock,0);
-
-			// Traverse to end of free list
-			while(nextFreeBlockNum != -1){
-				
-				// Get next block
-				SysLib.rawread(nextFreeBlockNum, nextFreeBlock);
-				temp = SysLib.bytes2int(nextFreeBlock,0);
-
-				// If the end of the free list is reached
-				if(temp == -1){
-					// Point last free block to the new free block
-					SysLib.int2bytes(blockNumber,nextFreeBlock,0);
-					SysLib.rawwrite(nextFreeBlockNum, nextFreeBlock);
-					SysLib.rawwrite(blockNumber,newFreeBlock);
-					return true;
-				}
-				// Keep iterating through free list
-				nextFreeBlockNum = temp;
-			}			
+			SysLib.int2bytes(freeList, newFreeBlock, 0);
+			SysLib.cwrite(blockNumber, newFreeBlock);
+			freeList = blockNumber;
+			return true;
 		}
 
 		// Operation failed
@@ -135,17 +190,34 @@ public class SuperBlock{
 
 	
 	
+	/**
+	 * Frees the given blocks, pushing them on the head of the free list in
+	 * reverse, so that the list starts with them in the given order and a
+	 * file freed in file order is handed out again as the same run
+	 * 
+	 * 
+	 * @param blocks
+	 */
+	public synchronized void returnBlocks(int[] blocks){
+		for(int i = blocks.length - 1; i >= 0; i--){
+			returnBlock(blocks[i]);
+		}
+	}
+
+	
+	
 	/**
 	 * Wipes the disk clean, resets superblock to default values
 	 * @param argInodeBlocks			Num inodes to make space for
 	 */
-	public void format(int argInodeBlocks){
+	public synchronized void format(int argInodeBlocks){
 
 		if(argInodeBlocks < 0){
 			argInodeBlocks = defaultInodeBlocks;
 		}
 		totalInodes = argInodeBlocks;
 		inodeBlocks = totalInodes;
+		inodeFormat = formatOption;
 
 
 		// Write fresh inodes to disk
@@ -170,7 +242,7 @@ public class SuperBlock{
 			// Set pointer to next free block
 			SysLib.int2bytes(i+1, freeBlock, 0);
 			// Write free block to disk
-			SysLib.rawwrite(i, freeBlock);
+			SysLib.cwrite(i, freeBlock);
 		}
 
 		
@@ -180,7 +252,7 @@ public class SuperBlock{
 			freeBlock[j] = 0;
 		}
 		SysLib.int2bytes(-1, freeBlock, 0);
-		SysLib.rawwrite(defaultBlocks - 1, freeBlock);	
+		SysLib.cwrite(defaultBlocks - 1, freeBlock);	
 
 		
 		// Write new superblock to disk
@@ -188,7 +260,8 @@ public class SuperBlock{
 		SysLib.int2bytes(totalBlocks,newSuper,totalBlockLocation);
 		SysLib.int2bytes(totalInodes,newSuper,totalInodeLocation);
 		SysLib.int2bytes(freeList,newSuper,freeListLocation);
-		SysLib.rawwrite(0,newSuper);
+		SysLib.int2bytes(inodeFormat,newSuper,inodeFormatLocation);
+		SysLib.cwrite(0,newSuper);
 
 	}
 }
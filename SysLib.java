@@ -25,6 +25,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String options[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, options );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -65,6 +70,23 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    public static int rawreadv( int blkNumbers[], byte b[][] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int rawwritev( int blkNumbers[], byte b[][] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int diskstat( StringBuffer s ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKSTAT, 0, s );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -85,6 +107,28 @@ public class SysLib {
 				 Kernel.CFLUSH, 0, null );
     }
 
+    public static int creadv( int blkNumbers[], byte b[][] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int cwritev( int blkNumbers[], byte b[][] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int cachestat( StringBuffer s ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CACHESTAT, 0, s );
+    }
+
+    public static int cprefetch( int blkNumbers[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPREFETCH, 0, blkNumbers );
+    }
+
     public static int csync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CSYNC, 0, null );
@@ -128,6 +172,26 @@ public class SysLib {
 				 Kernel.SEEK, fd, args );
     }
 
+    public static int fallocate( int fd, int offset, int len ) {
+	int[] args = new int[2];
+	args[0] = offset;
+	args[1] = len;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FALLOCATE, fd, args );
+    }
+
+    public static int truncate( int fd, int length ) {
+	int[] args = new int[1];
+	args[0] = length;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.TRUNCATE, fd, args );
+    }
+
+    public static int fsync( int fd ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.FSYNC, fd, null );
+    }
+
     // Implemented for final project
     public static int close( int fd ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
@@ -0,0 +1,217 @@
+class Test8 extends Thread {
+  final static int DEFAULTFILES = 48;
+  final int files;
+  int fd;
+  int size;
+
+  public Test8( String args[] ) {
+    files = Integer.parseInt( args[0] );
+  }
+
+  public Test8() {
+    files = DEFAULTFILES;
+  }
+
+  public void run( ) {
+    SysLib.format( files );
+    if ( test1( ) ) // write past the end of "hole"
+      SysLib.cout("Correct behavior of reading a hole..............1\n");
+    if ( test2( ) ) // truncate "trunc" shorter, then longer
+      SysLib.cout("Correct behavior of truncating a file...........1\n");
+    if ( test3( ) ) // truncate "trunc" into its inode and out again
+      SysLib.cout("Correct behavior of truncating a tiny file......1\n");
+    if ( test4( ) ) // rewrite "rw" with "w", then seek past its end
+      SysLib.cout("Correct behavior of rewriting a file............1\n");
+    if ( test5( ) ) // rewrite "rw" with "w", then truncate longer
+      SysLib.cout("Correct behavior of growing a rewritten file....1\n");
+    if ( test6( ) ) // fallocate "fa" past its end
+      SysLib.cout("Correct behavior of fallocate...................1\n");
+    if ( test7( ) ) // rewrite "fa" with "w", then fallocate over it
+      SysLib.cout("Correct behavior of fallocate after a rewrite...1\n");
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // buf[i] = seed + i, so that misplaced bytes show
+  private byte[] pattern( int length, int seed ) {
+    byte[] buf = new byte[length];
+    for ( int i = 0; i < length; i++ )
+      buf[i] = ( byte )( seed + i );
+    return buf;
+  }
+
+  // reads all of file, checking its size
+  private byte[] readAll( String file, int length ) {
+    fd = SysLib.open( file, "r" );
+    size = SysLib.fsize( fd );
+    if ( size != length ) {
+      SysLib.cout( "fsize = " + size + " should be " + length + " (wrong)\n" );
+      SysLib.close( fd );
+      return null;
+    }
+    byte[] tmpBuf = new byte[length];
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return null;
+    }
+    return tmpBuf;
+  }
+
+  // whether tmpBuf[from..from + expected.length - 1] are expected
+  private boolean same( byte[] tmpBuf, int from, byte[] expected ) {
+    for ( int i = 0; i < expected.length; i++ )
+      if ( tmpBuf[from + i] != expected[i] ) {
+        SysLib.cout( "tmpBuf[" + ( from + i ) + "]=" + tmpBuf[from + i] +
+                     " should be " + expected[i] + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  // whether tmpBuf[from..to - 1] are zeros
+  private boolean zeros( byte[] tmpBuf, int from, int to ) {
+    return same( tmpBuf, from, new byte[to - from] );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: write 16 bytes at 0 and 3000...." );
+    fd = SysLib.open( "hole", "w+" );
+    SysLib.write( fd, pattern( 16, 1 ) );
+    SysLib.seek( fd, 3000, 0 );
+    SysLib.write( fd, pattern( 16, 2 ) );
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "hole", 3016 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 16, 1 ) ) ||
+         !zeros( tmpBuf, 16, 3000 ) || !same( tmpBuf, 3000, pattern( 16, 2 ) ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: truncate 2000 to 700 to 1500...." );
+    fd = SysLib.open( "trunc", "w+" );
+    SysLib.write( fd, pattern( 2000, 3 ) );
+    if ( SysLib.truncate( fd, 700 ) != 0 || SysLib.fsize( fd ) != 700 ) {
+      SysLib.cout( "fsize = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    SysLib.truncate( fd, 1500 );
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "trunc", 1500 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 700, 3 ) ) ||
+         !zeros( tmpBuf, 700, 1500 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: truncate to 10, 20, write 600.." );
+    fd = SysLib.open( "trunc", "w+" );
+    SysLib.truncate( fd, 10 );  // small enough to move into the inode
+    SysLib.truncate( fd, 20 );
+    SysLib.seek( fd, 20, 0 );
+    SysLib.write( fd, pattern( 600, 4 ) ); // and out to a block again
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "trunc", 620 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 10, 3 ) ) ||
+         !zeros( tmpBuf, 10, 20 ) || !same( tmpBuf, 20, pattern( 600, 4 ) ) )
+      return false;
+
+    fd = SysLib.open( "trunc", "w+" );
+    SysLib.truncate( fd, 10 );
+    SysLib.close( fd );
+    tmpBuf = readAll( "trunc", 10 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 10, 3 ) ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: rewrite 3000 with 100 and 10..." );
+    fd = SysLib.open( "rw", "w+" );
+    SysLib.write( fd, pattern( 3000, 5 ) );
+    SysLib.close( fd );
+    fd = SysLib.open( "rw", "w" );
+    SysLib.write( fd, pattern( 100, 6 ) );
+    SysLib.seek( fd, 2000, 0 ); // over blocks the old data kept
+    SysLib.write( fd, pattern( 10, 7 ) );
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "rw", 2010 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 100, 6 ) ) ||
+         !zeros( tmpBuf, 100, 2000 ) || !same( tmpBuf, 2000, pattern( 10, 7 ) ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: rewrite 3000, truncate to 3000." );
+    fd = SysLib.open( "rw", "w+" );
+    SysLib.write( fd, pattern( 3000, 8 ) );
+    SysLib.close( fd );
+    fd = SysLib.open( "rw", "w" );
+    SysLib.write( fd, pattern( 100, 9 ) );
+    SysLib.truncate( fd, 3000 );
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "rw", 3000 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 100, 9 ) ) ||
+         !zeros( tmpBuf, 100, 3000 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: fallocate 100 to 4000.........." );
+    fd = SysLib.open( "fa", "w+" );
+    SysLib.write( fd, pattern( 100, 10 ) );
+    if ( SysLib.fallocate( fd, 0, 4000 ) != 0 ) {
+      SysLib.cout( "fallocate failed (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "fa", 4000 );
+    if ( tmpBuf == null || !same( tmpBuf, 0, pattern( 100, 10 ) ) ||
+         !zeros( tmpBuf, 100, 4000 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test7( ) {
+    //.............................................."
+    SysLib.cout( "7: rewrite 3000, fallocate 3000..." );
+    fd = SysLib.open( "fa", "w+" );
+    SysLib.write( fd, pattern( 3000, 11 ) );
+    SysLib.close( fd );
+    fd = SysLib.open( "fa", "w" );
+    SysLib.fallocate( fd, 0, 3000 );
+    SysLib.close( fd );
+
+    byte[] tmpBuf = readAll( "fa", 3000 );
+    if ( tmpBuf == null || !zeros( tmpBuf, 0, 3000 ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}